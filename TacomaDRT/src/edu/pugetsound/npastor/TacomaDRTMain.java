@@ -2,6 +2,8 @@ package edu.pugetsound.npastor;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.commons.io.FileUtils;
 
@@ -16,10 +18,12 @@ public class TacomaDRTMain {
 	private DRTSimulation mSimulation;
 	private static String mSimulationDirectory;
 	private static String mSourceSimDirectory; //Points to the directory of the source sim, when we're re-running a simulation
+	private static String mMasterSimDirectory; // Directory of the sim the source's trips were sampled from, if they were
 	public static long tripGenStartTime;
 	public static long simStartTime;
 	
 	public static int numThreads;
+	private static ExecutorService mExecutor; // Shared by everything that runs in parallel, see getExecutor()
 	
 	public final static String TAG = "TacomaDRTMain";
 	
@@ -29,6 +33,12 @@ public class TacomaDRTMain {
 			mSourceSimDirectory = args[0];
 		else 
 			mSourceSimDirectory = null;
+		// The source sim's trips may be a sample of a larger sim's trips. Its cache is then
+		// extracted from the larger sim's cache rather than routed again
+		if(args.length > 1)
+			mMasterSimDirectory = args[1];
+		else
+			mMasterSimDirectory = null;
 		drt.runModel(mSourceSimDirectory);
 	}
 	
@@ -99,6 +109,19 @@ public class TacomaDRTMain {
 		Log.writeBufferToLogFile();
 	}
 	
+	/**
+	 * Gets the executor shared by the simulation's parallel work, e.g. building the route
+	 * cache. It's a work-stealing pool of numThreads threads, so work submitted from
+	 * different places shares the processors rather than oversubscribing them. Its
+	 * threads are daemons, and don't keep the model from exiting
+	 * @return The executor
+	 */
+	public static synchronized ExecutorService getExecutor() {
+		if(mExecutor == null)
+			mExecutor = new ForkJoinPool(numThreads);
+		return mExecutor;
+	}
+	
 	public static void printTime(String message, long endTimeMillis, long startTimeMillis) {
 		float elapsedSecs = (float)(endTimeMillis - startTimeMillis) / 1000;
 		int timeMins = (int)(elapsedSecs / 60);
@@ -154,6 +177,18 @@ public class TacomaDRTMain {
 	}
 	
 	public static String getSourceCacheDir() {
+		return getSourceSimDirectory() + Constants.ROUTE_CACHE_BIN;
+	}
+	
+	public static String getSourceCacheCsvDir() {
 		return getSourceSimDirectory() + Constants.ROUTE_CACHE_CSV;
 	}
+	
+	/**
+	 * @return Directory of the simulation the source simulation's trips were sampled from,
+	 *         or null if they weren't sampled
+	 */
+	public static String getMasterSimDirectory() {
+		return mMasterSimDirectory;
+	}
 }
@@ -1,6 +1,7 @@
 package edu.pugetsound.npastor.riderGen;
 
 import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
 import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
@@ -21,6 +22,7 @@ import org.opengis.referencing.operation.MathTransform;
 import org.opengis.referencing.operation.TransformException;
 
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.Point;
@@ -119,6 +121,30 @@ public class CityBoundaryShp {
 		return new Point2D.Double(point.getX(), point.getY());
 	}
 	
+	/**
+	 * Returns the bounding box of the city limits
+	 * @return A rectangle in long/lat coordinates, x being longitude
+	 */
+	public Rectangle2D getBoundingBox() {
+		Rectangle2D bounds = null;
+		// Get the Tacoma feature, which should be the only feature in the Tacoma boundary file
+		FeatureIterator iterator = mBoundaryFeatureCollection.features();
+		Feature feature = (Feature) iterator.next();
+		GeometryAttributeImpl tacomaFeatureGeo = (GeometryAttributeImpl) feature.getDefaultGeometryProperty();
+		Geometry tacomaShape = tacomaFeatureGeo.getValue();
+		try {
+			Envelope envelope = JTS.transform(tacomaShape, mBoundaryProjectionTransform).getEnvelopeInternal();
+			bounds = new Rectangle2D.Double(envelope.getMinX(), envelope.getMinY(),
+					envelope.getMaxX() - envelope.getMinX(), envelope.getMaxY() - envelope.getMinY());
+		} catch (TransformException ex) {
+			Log.e(TAG, "Unable to transform the Tacoma boundary file into long/lat. " + ex.getMessage());
+			ex.printStackTrace();
+		}
+		
+		iterator.close();
+		return bounds;
+	}
+	
 	public void close() {
 //		mTacomaBoundaryFile.dispose();
 	}
@@ -4,6 +4,7 @@ import java.awt.geom.Point2D;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Random;
 import java.util.Scanner;
@@ -18,12 +19,12 @@ import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 
-import com.graphhopper.GHResponse;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.Point;
 
 import edu.pugetsound.npastor.TacomaDRTMain;
+import edu.pugetsound.npastor.routing.RouteSummary;
 import edu.pugetsound.npastor.routing.Routefinder;
 import edu.pugetsound.npastor.utils.Constants;
 import edu.pugetsound.npastor.utils.DRTUtils;
@@ -58,7 +59,7 @@ public class TripGenerator {
 		mRiderChars = new RiderChars(isRerun);
 		mPCData = new PCAgeEmployment();
 		mRandom = new Random();
-		mRouter = new Routefinder();
+		mRouter = Routefinder.getInstance();
 		mPointGen = new TractPointGenerator();
 	}
 
@@ -95,27 +96,13 @@ public class TripGenerator {
 		File file = new File(tripLogPath);
 		Log.iln(TAG, "Loading trips from: " + file.getPath());
 		
+		ArrayList<String[]> tripLines = new ArrayList<String[]>();
 		try {
 			Scanner scanner = new Scanner(file);
 			while (scanner.hasNextLine()) {
 				String[] tokens = scanner.nextLine().split(" ");
-				if(!tokens[0].equals(TRIP_FILE_LBL))
-					continue;
-				// Build the trip from the file line
-				Trip newTrip = new Trip(Integer.valueOf(tokens[1]));
-				newTrip.setTripType(Integer.valueOf(tokens[2]));
-				newTrip.setRiderAge(Integer.valueOf(tokens[3]));
-				newTrip.setDirection(tokens[4].equals("1") ? true : false);
-				newTrip.setOriginTract(tokens[5]);
-				newTrip.setOriginPoint(new Point2D.Double(Double.valueOf(tokens[6]), Double.valueOf(tokens[7])));
-				newTrip.setDestinationTract(tokens[8]);
-				newTrip.setDestinationPoint(new Point2D.Double(Double.valueOf(tokens[9]), Double.valueOf(tokens[10])));
-				newTrip.setPickupTime(Integer.valueOf(tokens[11]));
-				newTrip.setCalInTime(Integer.valueOf(tokens[12]));
-				
-				generateDirections(newTrip);
-				// And add trip to list
-				mTrips.add(newTrip);
+				if(tokens[0].equals(TRIP_FILE_LBL))
+					tripLines.add(tokens);
 			}
 			scanner.close();
 		} catch(FileNotFoundException ex) {
@@ -124,6 +111,38 @@ public class TripGenerator {
 			System.exit(1);
 		}
 		
+		// Trip identifiers must run from 0 to the number of trips - 1, as the route cache is
+		// indexed by them. A file sampled from a larger one has gaps, so its trips are renumbered 
+		// in order of their original identifiers. The originals are kept on each trip
+		int[] sourceIds = new int[tripLines.size()];
+		for(int i = 0; i < sourceIds.length; i++) {
+			sourceIds[i] = Integer.valueOf(tripLines.get(i)[1]);
+		}
+		Arrays.sort(sourceIds);
+		boolean renumber = sourceIds.length > 0 && sourceIds[sourceIds.length - 1] != sourceIds.length - 1;
+		if(renumber)
+			Log.iln(TAG, "Trip file holds a sample of " + sourceIds.length + " trips. Renumbering them");
+		
+		for(String[] tokens : tripLines) {
+			// Build the trip from the file line
+			int sourceId = Integer.valueOf(tokens[1]);
+			Trip newTrip = new Trip(renumber ? Arrays.binarySearch(sourceIds, sourceId) : sourceId);
+			newTrip.setSourceIdentifier(sourceId);
+			newTrip.setTripType(Integer.valueOf(tokens[2]));
+			newTrip.setRiderAge(Integer.valueOf(tokens[3]));
+			newTrip.setDirection(tokens[4].equals("1") ? true : false);
+			newTrip.setOriginTract(tokens[5]);
+			newTrip.setOriginPoint(new Point2D.Double(Double.valueOf(tokens[6]), Double.valueOf(tokens[7])));
+			newTrip.setDestinationTract(tokens[8]);
+			newTrip.setDestinationPoint(new Point2D.Double(Double.valueOf(tokens[9]), Double.valueOf(tokens[10])));
+			newTrip.setPickupTime(Integer.valueOf(tokens[11]));
+			newTrip.setCalInTime(Integer.valueOf(tokens[12]));
+			
+			generateDirections(newTrip);
+			// And add trip to list
+			mTrips.add(newTrip);
+		}
+		
 		if(doOnFinished)
 			onTripsGenerated();
 		return mTrips;
@@ -410,9 +429,10 @@ public class TripGenerator {
 	 */
 	private int generateDirections(Trip t) {
 
-		GHResponse routeResponse = mRouter.findRoute(t.getOriginPoint(), t.getDestinationPoint());
-		t.setRoute(routeResponse);
-		return (int) (routeResponse.getTime() / 60);
+		// Only the route's time is used, so skip building its geometry
+		RouteSummary route = mRouter.findTravelTime(t.getOriginPoint(), t.getDestinationPoint());
+		t.setRoute(route);
+		return (int) (route.getTime() / 60);
 	}
 	
 	/**
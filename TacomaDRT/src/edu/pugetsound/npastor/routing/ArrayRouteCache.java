@@ -0,0 +1,45 @@
+package edu.pugetsound.npastor.routing;
+
+/**
+ * A route cache backed by a jagged array on the Java heap. Every row is its own
+ * array, and the row count is limited by the heap.
+ * @author Nathan P
+ *
+ */
+class ArrayRouteCache extends RouteCache {
+
+	private byte[][] mCache;
+	private int mCellShift;
+
+	ArrayRouteCache(int numTrips, TravelTimeCodec codec) {
+		super(numTrips, codec);
+		mCellShift = codec.getCellShift();
+		mCache = new byte[mSize][mSize << mCellShift];
+	}
+
+	@Override
+	public int getDirect(int i1, int i2) {
+		byte[] row = mCache[i1];
+		int ticks;
+		if(mCellShift == 0) {
+			ticks = row[i2] & 0xFF;
+		} else {
+			int offset = i2 << 1;
+			ticks = ((row[offset] & 0xFF) << 8) | (row[offset + 1] & 0xFF);
+		}
+		return mCodec.decode(ticks);
+	}
+
+	@Override
+	protected void putDirect(int i1, int i2, int travelTimeSecs) {
+		byte[] row = mCache[i1];
+		int ticks = mCodec.encode(travelTimeSecs);
+		if(mCellShift == 0) {
+			row[i2] = (byte) ticks;
+		} else {
+			int offset = i2 << 1;
+			row[offset] = (byte) (ticks >>> 8);
+			row[offset + 1] = (byte) ticks;
+		}
+	}
+}
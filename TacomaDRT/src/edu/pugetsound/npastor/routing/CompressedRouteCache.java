@@ -0,0 +1,119 @@
+package edu.pugetsound.npastor.routing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A read-only route cache backed by a compressed cache file. A cell is read by inflating
+ * its block of rows, and recently used blocks are kept inflated in a least recently used
+ * block cache. See CompressedRouteCacheFile.
+ * @author Nathan P
+ *
+ */
+class CompressedRouteCache extends RouteCache {
+
+	private FileChannel mChannel;
+	private int mRowsPerBlock;
+	private int mRowBytes;
+	private int mCellShift;
+	private long[] mOffsets;
+	private LinkedHashMap<Integer, byte[]> mBlocks;
+
+	// Inflaters hold native memory, so each thread reuses its own
+	private ThreadLocal<Inflater> mInflater = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	CompressedRouteCache(int numTrips, TravelTimeCodec codec, FileChannel channel, int rowsPerBlock,
+			long[] offsets, long blockCacheBytes) {
+		super(numTrips, codec);
+		mChannel = channel;
+		mRowsPerBlock = rowsPerBlock;
+		mCellShift = codec.getCellShift();
+		mRowBytes = mSize << mCellShift;
+		mOffsets = offsets;
+
+		final int maxBlocks = (int) Math.max(1, blockCacheBytes / ((long) rowsPerBlock * mRowBytes));
+		mBlocks = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+				return size() > maxBlocks;
+			}
+		};
+	}
+
+	@Override
+	public int getDirect(int i1, int i2) {
+		int block = i1 / mRowsPerBlock;
+		byte[] rows;
+		synchronized(mBlocks) {
+			rows = mBlocks.get(block);
+		}
+		if(rows == null) {
+			// Inflate outside of the lock. Two threads may race to inflate the same
+			// block, which costs a duplicate inflate but gives the same rows
+			rows = inflate(block);
+			synchronized(mBlocks) {
+				mBlocks.put(block, rows);
+			}
+		}
+
+		int offset = (i1 - block * mRowsPerBlock) * mRowBytes + (i2 << mCellShift);
+		int ticks = (mCellShift == 0) ? rows[offset] & 0xFF
+				: ((rows[offset] & 0xFF) << 8) | (rows[offset + 1] & 0xFF);
+		return mCodec.decode(ticks);
+	}
+
+	@Override
+	protected void putDirect(int i1, int i2, int travelTimeSecs) {
+		throw new UnsupportedOperationException("Compressed caches are read-only");
+	}
+
+	/**
+	 * Reads and inflates a block of rows
+	 */
+	private byte[] inflate(int block) {
+		int firstRow = block * mRowsPerBlock;
+		int numRows = Math.min(mRowsPerBlock, mSize - firstRow);
+		ByteBuffer compressed = ByteBuffer.allocate((int) (mOffsets[block + 1] - mOffsets[block]));
+		byte[] rows = new byte[numRows * mRowBytes];
+		try {
+			// Positional reads leave the channel position alone, so threads can read concurrently
+			long position = mOffsets[block];
+			while(compressed.hasRemaining()) {
+				int read = mChannel.read(compressed, position);
+				if(read < 0)
+					throw new IOException("Unexpected end of cache file in block " + block);
+				position += read;
+			}
+
+			Inflater inflater = mInflater.get();
+			inflater.reset();
+			inflater.setInput(compressed.array());
+			int length = 0;
+			while(length < rows.length) {
+				int inflated = inflater.inflate(rows, length, rows.length - length);
+				if(inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				length += inflated;
+			}
+			if(length != rows.length)
+				throw new IOException("Block " + block + " inflated to " + length + " bytes, expected " + rows.length);
+		} catch (IOException ex) {
+			throw new IllegalStateException("Unable to read route cache block " + block, ex);
+		} catch (DataFormatException ex) {
+			throw new IllegalStateException("Route cache block " + block + " is corrupt", ex);
+		}
+		return rows;
+	}
+}
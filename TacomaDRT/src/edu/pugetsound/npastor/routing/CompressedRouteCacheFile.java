@@ -0,0 +1,193 @@
+package edu.pugetsound.npastor.routing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.Deflater;
+
+import edu.pugetsound.npastor.utils.Constants;
+import edu.pugetsound.npastor.utils.Log;
+
+/**
+ * Reads and writes the compressed route cache file, for archiving caches at a fraction
+ * of their size. The matrix is split into blocks of whole rows, and each block is Deflate
+ * compressed on its own, so any cell can be read by inflating just its block.
+ *
+ *   Header layout (big-endian):
+ *   int  magic           "TDRZ"
+ *   int  version         FORMAT_VERSION
+ *   int  numTrips        Matrix is (2 * numTrips)^2 cells
+ *   int  resolutionSecs  Seconds per stored tick
+ *   int  bytesPerCell    1, or 2 for big-endian unsigned shorts
+ *   int  rowsPerBlock
+ *   long graphFingerprint See Routefinder.getGraphFingerprint()
+ *   long[numBlocks + 1]  File offset of every block, then the end of the last block
+ *
+ * Rows are packed exactly as in the uncompressed cache file. See RouteCacheFile.
+ * @author Nathan P
+ *
+ */
+public class CompressedRouteCacheFile {
+
+	public static final String TAG = "CompressedRouteCacheFile";
+
+	private static final int MAGIC = 0x5444525a; // "TDRZ"
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_BYTES = 32;
+
+	private static final int TARGET_BLOCK_BYTES = 1 << 20; // Uncompressed size blocks are made close to
+
+	/** Memory for inflated blocks, when a compressed cache is read */
+	public static final long DEFAULT_BLOCK_CACHE_BYTES = 256L << 20;
+
+	/**
+	 * Compresses the binary cache file in the specified simulation directory, and
+	 * deletes the uncompressed file
+	 * @param args args[0] is the simulation directory
+	 */
+	public static void main(String[] args) {
+		String binPath = args[0] + Constants.ROUTE_CACHE_BIN;
+		String path = args[0] + Constants.ROUTE_CACHE_COMPRESSED;
+		try {
+			long fingerprint = Routefinder.getGraphFingerprint();
+			DataInputStream in = new DataInputStream(new FileInputStream(binPath));
+			int numTrips;
+			try {
+				in.readInt();
+				in.readInt();
+				numTrips = in.readInt();
+			} finally {
+				in.close();
+			}
+			write(RouteCacheFile.map(binPath, numTrips, fingerprint), path, fingerprint);
+			new File(binPath).delete();
+			Log.iln(TAG, "Compressed " + binPath + " to " + new File(path).length() + " bytes");
+		} catch (IOException ex) {
+			Log.e(TAG, "Unable to compress cache file at: " + binPath + "\n  " + ex.getMessage());
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Writes the cache to a compressed cache file
+	 * @param cache The cache to write
+	 * @param path Destination file
+	 * @param fingerprint Fingerprint of the graph the cache was routed on
+	 * @throws IOException If the file can't be written
+	 */
+	public static void write(RouteCache cache, String path, long fingerprint) throws IOException {
+		int size = cache.getSize();
+		TravelTimeCodec codec = cache.getCodec();
+		int rowBytes = size * codec.getBytesPerCell();
+		int rowsPerBlock = Math.max(1, Math.min(size, TARGET_BLOCK_BYTES / rowBytes));
+		int numBlocks = (size + rowsPerBlock - 1) / rowsPerBlock;
+		long[] offsets = new long[numBlocks + 1];
+
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		try {
+			file.setLength(0);
+			file.writeInt(MAGIC);
+			file.writeInt(FORMAT_VERSION);
+			file.writeInt(size / 2);
+			file.writeInt(codec.getResolutionSecs());
+			file.writeInt(codec.getBytesPerCell());
+			file.writeInt(rowsPerBlock);
+			file.writeLong(fingerprint);
+			// Leave room for the block index, it's written once the block sizes are known
+			long offset = HEADER_BYTES + (long) (numBlocks + 1) * 8;
+			file.seek(offset);
+
+			byte[] block = new byte[rowsPerBlock * rowBytes];
+			byte[] buffer = new byte[64 * 1024];
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			boolean wide = codec.getBytesPerCell() == 2;
+			for(int b = 0; b < numBlocks; b++) {
+				int firstRow = b * rowsPerBlock;
+				int numRows = Math.min(rowsPerBlock, size - firstRow);
+				int pos = 0;
+				for(int i = firstRow; i < firstRow + numRows; i++) {
+					for(int j = 0; j < size; j++) {
+						int ticks = codec.encode(cache.getDirect(i, j));
+						if(wide)
+							block[pos++] = (byte) (ticks >>> 8);
+						block[pos++] = (byte) ticks;
+					}
+				}
+
+				deflater.reset();
+				deflater.setInput(block, 0, pos);
+				deflater.finish();
+				compressed.reset();
+				while(!deflater.finished()) {
+					int len = deflater.deflate(buffer);
+					compressed.write(buffer, 0, len);
+				}
+				offsets[b] = offset;
+				file.write(compressed.toByteArray());
+				offset += compressed.size();
+			}
+			offsets[numBlocks] = offset;
+
+			file.seek(HEADER_BYTES);
+			for(long o : offsets)
+				file.writeLong(o);
+		} finally {
+			deflater.end();
+			file.close();
+		}
+	}
+
+	/**
+	 * Opens a compressed cache file for random access. The file stays open for
+	 * the life of the cache
+	 * @param path The compressed cache file
+	 * @param numTrips Expected number of trips
+	 * @param fingerprint Fingerprint of the graph in use
+	 * @param blockCacheBytes Memory to keep inflated blocks in
+	 * @return A read-only route cache backed by the file
+	 * @throws IOException If the file can't be read, or does not match the trips or graph
+	 */
+	public static RouteCache open(String path, int numTrips, long fingerprint, long blockCacheBytes) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		boolean opened = false;
+		try {
+			if(file.readInt() != MAGIC)
+				throw new IOException("Not a compressed route cache file: " + path);
+			int version = file.readInt();
+			if(version != FORMAT_VERSION)
+				throw new IOException("Unsupported cache file version " + version + " at: " + path);
+			int fileTrips = file.readInt();
+			if(fileTrips != numTrips)
+				throw new IOException("Cache file holds " + fileTrips + " trips, expected " + numTrips);
+			TravelTimeCodec codec;
+			try {
+				codec = new TravelTimeCodec(file.readInt(), file.readInt());
+			} catch (IllegalArgumentException ex) {
+				throw new IOException("Unsupported cache resolution at: " + path + "\n  " + ex.getMessage());
+			}
+			int rowsPerBlock = file.readInt();
+			if(file.readLong() != fingerprint)
+				throw new IOException("Cache file was built on a different graph: " + path);
+
+			int size = numTrips * 2;
+			int numBlocks = (size + rowsPerBlock - 1) / rowsPerBlock;
+			long[] offsets = new long[numBlocks + 1];
+			for(int b = 0; b <= numBlocks; b++)
+				offsets[b] = file.readLong();
+			if(offsets[numBlocks] != file.length())
+				throw new IOException("Cache file is truncated: " + path);
+
+			CompressedRouteCache cache = new CompressedRouteCache(numTrips, codec, file.getChannel(),
+					rowsPerBlock, offsets, blockCacheBytes);
+			opened = true;
+			return cache;
+		} finally {
+			if(!opened)
+				file.close();
+		}
+	}
+}
@@ -0,0 +1,250 @@
+package edu.pugetsound.npastor.routing;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.pugetsound.npastor.utils.Log;
+
+/**
+ * Parses a legacy comma separated cache file into a cache, in parallel. The file is
+ * memory-mapped and split into byte ranges. A first pass counts the lines starting in
+ * each range, which gives every range the index of its first row, then a second pass
+ * parses each range's rows straight from the mapped bytes into the cache. Neither pass
+ * creates any objects per row or cell, so parsing keeps up with the disk.
+ *
+ * Each row of the file is one cache row of signed byte minutes, e.g. "12,-3,0".
+ * @author Nathan P
+ *
+ */
+class CsvCacheParser {
+
+	public static final String TAG = "CsvCacheParser";
+
+	private static final long MAX_RANGE_BYTES = 1L << 30; // Ranges are mapped separately, each must stay under 2 GB
+	private static final int MAX_CELL_BYTES = 5; // "-128,"
+
+	private FileChannel mChannel;
+	private int mNumThreads;
+	private long mLength;
+	private int mSize; // Cells per row
+	private long[] mRangeStart; // Ranges are [mRangeStart[r], mRangeStart[r + 1])
+	private int[] mFirstRow; // Row index of the first line starting in each range
+
+	/**
+	 * @param channel The csv file
+	 * @param numThreads Number of parsing threads
+	 * @throws IOException If the file can't be read, or its first row is malformed
+	 */
+	CsvCacheParser(FileChannel channel, int numThreads) throws IOException {
+		mChannel = channel;
+		mNumThreads = numThreads;
+		mLength = channel.size();
+		if(mLength == 0)
+			throw new IOException("Cache file is empty");
+		mSize = countCells();
+
+		int numRanges = (int) Math.max(numThreads, (mLength + MAX_RANGE_BYTES - 1) / MAX_RANGE_BYTES);
+		mRangeStart = new long[numRanges + 1];
+		for(int r = 0; r <= numRanges; r++) {
+			mRangeStart[r] = mLength * r / numRanges;
+		}
+		mFirstRow = new int[numRanges + 1];
+	}
+
+	/**
+	 * @return Number of trips in the file, half its row width
+	 */
+	int getTripCount() {
+		return mSize / 2;
+	}
+
+	/**
+	 * Parses the file into the cache
+	 * @param cache A cache of getTripCount() trips. Each row is only written by one thread
+	 * @throws IOException If the file can't be read, or is malformed
+	 */
+	void parseInto(final RouteCache cache) throws IOException {
+		final int numRanges = mRangeStart.length - 1;
+		final int[] lineCounts = new int[numRanges];
+		runInParallel(mNumThreads, numRanges, new RangeTask() {
+			@Override
+			public void run(int range) throws IOException {
+				lineCounts[range] = countLineStarts(range);
+			}
+		});
+
+		for(int r = 0; r < numRanges; r++) {
+			mFirstRow[r + 1] = mFirstRow[r] + lineCounts[r];
+		}
+		if(mFirstRow[numRanges] != mSize)
+			throw new IOException("Cache file has " + mFirstRow[numRanges] + " rows, expected " + mSize);
+
+		runInParallel(mNumThreads, numRanges, new RangeTask() {
+			@Override
+			public void run(int range) throws IOException {
+				parseRange(range, cache);
+			}
+		});
+	}
+
+	/**
+	 * Counts the cells of the first row
+	 */
+	private int countCells() throws IOException {
+		MappedByteBuffer buffer = map(0, Math.min(mLength, Integer.MAX_VALUE));
+		int cells = 0;
+		boolean inCell = false;
+		for(int p = 0; p < buffer.limit(); p++) {
+			byte b = buffer.get(p);
+			if(b == '\n' || b == '\r')
+				break;
+			if(b == ',') {
+				if(!inCell)
+					throw new IOException("Empty cell in row 0");
+				cells++;
+				inCell = false;
+			} else {
+				inCell = true;
+			}
+		}
+		// The last cell may or may not be followed by a comma
+		return inCell ? cells + 1 : cells;
+	}
+
+	/**
+	 * Counts the lines starting in a range: those at the start of the file, or after a newline
+	 */
+	private int countLineStarts(int range) throws IOException {
+		long start = mRangeStart[range];
+		long end = mRangeStart[range + 1];
+		if(end == start)
+			return 0;
+		long from = Math.max(0, start - 1); // A newline just before the range starts a line in it
+		MappedByteBuffer buffer = map(from, end - 1 - from);
+		int count = (start == 0) ? 1 : 0;
+		for(int p = 0; p < buffer.limit(); p++) {
+			if(buffer.get(p) == '\n')
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Parses the rows starting in a range. The last of them may run past the end of the range
+	 */
+	private void parseRange(int range, RouteCache cache) throws IOException {
+		long start = mRangeStart[range];
+		long end = mRangeStart[range + 1];
+		if(mFirstRow[range] == mFirstRow[range + 1])
+			return;
+		long from = Math.max(0, start - 1);
+		long maxRowBytes = (long) mSize * MAX_CELL_BYTES + 2;
+		MappedByteBuffer buffer = map(from, Math.min(mLength, end + maxRowBytes) - from);
+
+		// Find the first line starting in the range
+		int p = 0;
+		if(start > 0) {
+			while(buffer.get(p) != '\n')
+				p++;
+			p++;
+		}
+
+		int limit = buffer.limit();
+		int rangeEnd = (int) (end - from);
+		for(int row = mFirstRow[range]; row < mFirstRow[range + 1]; row++) {
+			if(p >= rangeEnd)
+				throw new IOException("Row " + row + " expected in range " + range + " is missing");
+			int col = 0;
+			while(p < limit) {
+				byte b = buffer.get(p);
+				if(b == '\n' || b == '\r')
+					break;
+
+				boolean negative = b == '-';
+				if(negative)
+					p++;
+				int value = 0;
+				int digits = 0;
+				while(p < limit && (b = buffer.get(p)) >= '0' && b <= '9') {
+					value = value * 10 + (b - '0');
+					digits++;
+					p++;
+				}
+				if(digits == 0 || digits > 3)
+					throw new IOException("Malformed cell " + col + " in row " + row);
+				if(col >= mSize)
+					throw new IOException("Row " + row + " has more than " + mSize + " cells");
+
+				// Times past 127 minutes were written as negative bytes. Read back
+				// unsigned, they are correct
+				int minutes = (negative ? -value : value) & 0xFF;
+				cache.putDirect(row, col, minutes * 60);
+				col++;
+
+				if(p < limit && buffer.get(p) == ',')
+					p++;
+			}
+			if(col != mSize)
+				throw new IOException("Row " + row + " has " + col + " cells, expected " + mSize);
+
+			// Step over the line ending
+			while(p < limit && buffer.get(p) != '\n')
+				p++;
+			p++;
+		}
+	}
+
+	private MappedByteBuffer map(long position, long size) throws IOException {
+		return mChannel.map(FileChannel.MapMode.READ_ONLY, position, size);
+	}
+
+	private interface RangeTask {
+		void run(int range) throws IOException;
+	}
+
+	/**
+	 * Runs the task on every range. Threads claim ranges from a shared counter
+	 * @throws IOException The first error any range threw
+	 */
+	private static void runInParallel(int numThreads, final int numRanges, final RangeTask task) throws IOException {
+		final AtomicInteger nextRange = new AtomicInteger();
+		final IOException[] error = new IOException[1];
+		final CountDownLatch latch = new CountDownLatch(numThreads);
+		for(int i = 0; i < numThreads; i++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						int range;
+						while((range = nextRange.getAndIncrement()) < numRanges) {
+							task.run(range);
+						}
+					} catch (IOException ex) {
+						synchronized(error) {
+							if(error[0] == null)
+								error[0] = ex;
+						}
+						// Stop the other threads claiming ranges
+						nextRange.set(numRanges);
+					} finally {
+						latch.countDown();
+					}
+				}
+			}).start();
+		}
+		try {
+			latch.await();
+		} catch (InterruptedException ex) {
+			Log.e(TAG, ex.getMessage());
+			ex.printStackTrace();
+			throw new IOException("Interrupted parsing cache file");
+		}
+		synchronized(error) {
+			if(error[0] != null)
+				throw error[0];
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package edu.pugetsound.npastor.routing;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import edu.pugetsound.npastor.utils.Trip;
+
+/**
+ * The street graph node every trip endpoint snaps to. Routing a point means first finding
+ * the graph's closest node through its location index, and a cache build routes every
+ * endpoint thousands of times. Each endpoint is snapped once, the first time it is needed,
+ * and its node kept in an array indexed like the cache's rows, so later routes start
+ * straight from the node.
+ *
+ * Safe to share between threads. Two threads that snap the same endpoint at once both
+ * store the same node.
+ * @author Nathan P
+ *
+ */
+public class EndpointSnapCache {
+
+	private static final int NOT_SNAPPED = -2;
+
+	private Routefinder mRouter;
+	private Trip[] mTrips; // Indexed by cache row / 2
+	private int[] mNodes; // Node of every endpoint, indexed by cache row. -1 if the endpoint doesn't snap
+	private boolean mAllSnapped;
+
+	/**
+	 * @param router Router whose graph to snap to
+	 * @param trips All trips in the simulation. Identifiers must run from 0 to trips.size() - 1
+	 */
+	public EndpointSnapCache(Routefinder router, ArrayList<Trip> trips) {
+		this(router, byId(trips));
+	}
+
+	/**
+	 * @param router Router whose graph to snap to
+	 * @param trips Trips in the order of the cache's rows: trips[k] has rows 2k and 2k + 1.
+	 *        Their identifiers aren't used
+	 */
+	public EndpointSnapCache(Routefinder router, Trip[] trips) {
+		mRouter = router;
+		mTrips = trips;
+		mNodes = new int[trips.length * 2];
+		Arrays.fill(mNodes, NOT_SNAPPED);
+	}
+
+	private static Trip[] byId(ArrayList<Trip> trips) {
+		Trip[] byId = new Trip[trips.size()];
+		for(Trip t : trips) {
+			byId[t.getIdentifier()] = t;
+		}
+		return byId;
+	}
+
+	/**
+	 * @param index Cache row of the endpoint, see RouteCache.hash()
+	 * @return The endpoint's node, or -1 if no node is near it
+	 */
+	public int getNode(int index) {
+		int node = mNodes[index];
+		if(node == NOT_SNAPPED) {
+			node = mRouter.snapToNode(getPoint(index));
+			mNodes[index] = node;
+		}
+		return node;
+	}
+
+	/**
+	 * @param index Cache row of the endpoint, see RouteCache.hash()
+	 * @return The endpoint's location
+	 */
+	public Point2D getPoint(int index) {
+		Trip t = mTrips[index / 2];
+		return index % 2 == 0 ? t.getOriginPoint() : t.getDestinationPoint();
+	}
+
+	/**
+	 * @return Number of endpoints, twice the number of trips
+	 */
+	public int getSize() {
+		return mNodes.length;
+	}
+
+	/**
+	 * Snaps every endpoint that isn't snapped yet. Threads that call this together wait for
+	 * the first to finish, rather than all snapping every endpoint
+	 */
+	public synchronized void snapAll() {
+		if(mAllSnapped)
+			return;
+		for(int i = 0; i < mNodes.length; i++) {
+			getNode(i);
+		}
+		mAllSnapped = true;
+	}
+
+	/**
+	 * Finds the travel time between two endpoints, routing from node to node
+	 * @param i1 Cache row of the first endpoint
+	 * @param i2 Cache row of the second endpoint
+	 * @return The time in seconds to travel between the endpoints
+	 */
+	public int getTravelTimeSecs(int i1, int i2) {
+		return mRouter.getTravelTimeSecs(getPoint(i1), getNode(i1), getPoint(i2), getNode(i2));
+	}
+}
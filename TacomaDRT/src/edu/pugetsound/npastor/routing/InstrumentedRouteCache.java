@@ -0,0 +1,164 @@
+package edu.pugetsound.npastor.routing;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Wraps a route cache and records how it is read: how often each row and each column
+ * is accessed, and which cells were touched at least once. Use it to see how much of
+ * the matrix a simulation actually needs.
+ *
+ * Row and column counts are kept per thread, so counting needs no synchronization, and
+ * are merged when read. Touched cells are marked in a shared bitmap whose segments are
+ * only allocated once a cell in them is touched. A cell is checked before it is marked,
+ * so repeated reads of the same cell cost no atomic write.
+ * @author Nathan P
+ *
+ */
+public class InstrumentedRouteCache extends RouteCache {
+
+	private static final int SEGMENT_SHIFT = 20; // Words per bitmap segment, as a power of 2 (8 MB)
+	private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+	private RouteCache mCache;
+	private AtomicReferenceArray<AtomicLongArray> mTouched;
+	private ArrayList<long[][]> mThreadCounts; // Row and column counts of every thread that read the cache
+
+	private ThreadLocal<long[][]> mCounts = new ThreadLocal<long[][]>() {
+		@Override
+		protected long[][] initialValue() {
+			long[][] counts = new long[][] { new long[mSize], new long[mSize] };
+			synchronized(mThreadCounts) {
+				mThreadCounts.add(counts);
+			}
+			return counts;
+		}
+	};
+
+	/**
+	 * @param cache The cache to record accesses to
+	 */
+	public InstrumentedRouteCache(RouteCache cache) {
+		super(cache.getSize() / 2, cache.getCodec());
+		mCache = cache;
+		mThreadCounts = new ArrayList<long[][]>();
+		long words = ((long) mSize * mSize + 63) >>> 6;
+		mTouched = new AtomicReferenceArray<AtomicLongArray>((int) ((words + SEGMENT_MASK) >>> SEGMENT_SHIFT));
+	}
+
+	@Override
+	public int getDirect(int i1, int i2) {
+		long[][] counts = mCounts.get();
+		counts[0][i1]++;
+		counts[1][i2]++;
+
+		long cell = (long) i1 * mSize + i2;
+		long word = cell >>> 6;
+		long bit = 1L << (cell & 63);
+		AtomicLongArray segment = getSegment((int) (word >>> SEGMENT_SHIFT));
+		int index = (int) (word & SEGMENT_MASK);
+		long value = segment.get(index);
+		while((value & bit) == 0 && !segment.compareAndSet(index, value, value | bit))
+			value = segment.get(index);
+
+		return mCache.getDirect(i1, i2);
+	}
+
+	@Override
+	protected void putDirect(int i1, int i2, int travelTimeSecs) {
+		mCache.putDirect(i1, i2, travelTimeSecs);
+	}
+
+	/**
+	 * @return The wrapped cache
+	 */
+	public RouteCache getCache() {
+		return mCache;
+	}
+
+	/**
+	 * Merges the counts of all threads. Call once reading has finished, counts still
+	 * being made by other threads may be missed
+	 * @return Number of reads of each row
+	 */
+	public long[] getRowAccessCounts() {
+		return mergeCounts(0);
+	}
+
+	/**
+	 * Merges the counts of all threads. Call once reading has finished, counts still
+	 * being made by other threads may be missed
+	 * @return Number of reads of each column
+	 */
+	public long[] getColumnAccessCounts() {
+		return mergeCounts(1);
+	}
+
+	/**
+	 * @return Total number of cells read
+	 */
+	public long getAccessCount() {
+		long total = 0;
+		for(long count : getRowAccessCounts())
+			total += count;
+		return total;
+	}
+
+	/**
+	 * @return Number of distinct cells read at least once
+	 */
+	public long getDistinctCellCount() {
+		long distinct = 0;
+		for(int s = 0; s < mTouched.length(); s++) {
+			AtomicLongArray segment = mTouched.get(s);
+			if(segment == null)
+				continue;
+			for(int i = 0; i < segment.length(); i++)
+				distinct += Long.bitCount(segment.get(i));
+		}
+		return distinct;
+	}
+
+	/**
+	 * @return The pairs of trips with at least one route read
+	 */
+	public RouteCacheTrace getTrace() {
+		RouteCacheTrace trace = new RouteCacheTrace(mSize / 2);
+		for(int s = 0; s < mTouched.length(); s++) {
+			AtomicLongArray segment = mTouched.get(s);
+			if(segment == null)
+				continue;
+			for(int i = 0; i < segment.length(); i++) {
+				long word = segment.get(i);
+				while(word != 0) {
+					long cell = ((((long) s << SEGMENT_SHIFT) + i) << 6) + Long.numberOfTrailingZeros(word);
+					word &= word - 1;
+					trace.add((int) (cell / mSize) / 2, (int) (cell % mSize) / 2);
+				}
+			}
+		}
+		return trace;
+	}
+
+	private long[] mergeCounts(int which) {
+		long[] merged = new long[mSize];
+		synchronized(mThreadCounts) {
+			for(long[][] counts : mThreadCounts) {
+				for(int i = 0; i < mSize; i++)
+					merged[i] += counts[which][i];
+			}
+		}
+		return merged;
+	}
+
+	private AtomicLongArray getSegment(int s) {
+		AtomicLongArray segment = mTouched.get(s);
+		if(segment == null) {
+			// Two threads may race to allocate a segment, only the first one is kept
+			mTouched.compareAndSet(s, null, new AtomicLongArray(1 << SEGMENT_SHIFT));
+			segment = mTouched.get(s);
+		}
+		return segment;
+	}
+}
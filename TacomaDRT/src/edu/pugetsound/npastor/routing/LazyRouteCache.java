@@ -0,0 +1,70 @@
+package edu.pugetsound.npastor.routing;
+
+import java.util.ArrayList;
+
+import edu.pugetsound.npastor.utils.Trip;
+
+/**
+ * A read-through route cache. Nothing is routed up front: a cell is routed the first
+ * time it is read, then memoized. REBUS only reads cells for stops that become adjacent
+ * in a candidate schedule, so the routing work is proportional to what the scheduler
+ * actually touches rather than to (2N)^2.
+ *
+ * Memoized cells live in a bounded map, packed as 16 bit ticks. Once the memory budget is reached, cold cells
+ * are evicted and will be routed again if they are ever read again.
+ * @author Nathan P
+ *
+ */
+public class LazyRouteCache extends RouteCache {
+
+	private EndpointSnapCache mSnaps; // Each endpoint is snapped to the graph once
+	private StripedLongCharMap mMemo;
+
+	/**
+	 * @param trips All trips in the simulation. Identifiers must run from 0 to trips.size() - 1
+	 * @param memoryBudgetBytes Approximate memory the memoized cells may use
+	 */
+	public LazyRouteCache(ArrayList<Trip> trips, long memoryBudgetBytes) {
+		super(trips.size(), TravelTimeCodec.SECONDS_5_16);
+		mSnaps = new EndpointSnapCache(Routefinder.getInstance(), trips);
+		mMemo = new StripedLongCharMap(memoryBudgetBytes);
+	}
+
+	@Override
+	public int getDirect(int i1, int i2) {
+		if(i1 == i2)
+			return 0;
+		long key = (long) i1 * mSize + i2;
+		int value = mMemo.get(key);
+		if(value != StripedLongCharMap.MISSING)
+			return mCodec.decode(value);
+
+		// Miss. Route the cell outside of any lock. Two threads may race to route the
+		// same cell, which costs a duplicate query but gives the same answer
+		int ticks = mCodec.encode(mSnaps.getTravelTimeSecs(i1, i2));
+		mMemo.put(key, (char) ticks);
+		return mCodec.decode(ticks);
+	}
+
+	/**
+	 * Seeds a cell, e.g. with a time that is already known
+	 */
+	@Override
+	protected void putDirect(int i1, int i2, int travelTimeSecs) {
+		mMemo.put((long) i1 * mSize + i2, (char) mCodec.encode(travelTimeSecs));
+	}
+
+	/**
+	 * @return Number of cells currently memoized
+	 */
+	public long getMemoizedCount() {
+		return mMemo.size();
+	}
+
+	/**
+	 * @return Number of memoized cells evicted so far
+	 */
+	public long getEvictedCount() {
+		return mMemo.evictions();
+	}
+}
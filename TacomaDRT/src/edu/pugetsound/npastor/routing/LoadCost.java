@@ -181,13 +181,14 @@ public class LoadCost {
 		if(lastJob.getTrip() == null)
 			cost = 0;
 		else if(lastJob.nextJobIs(mVehiclePlanIndex, curJob))
-			cost = lastJob.getTimeToNextJob(mVehiclePlanIndex);
+			cost = lastJob.getTimeToNextJobSecs(mVehiclePlanIndex);
 		else 
 			cost = mCache.getHash(lastJob.getTrip().getIdentifier(), 
 					lastJob.getType() == VehicleScheduleJob.JOB_TYPE_PICKUP, 
 					curJob.getTrip().getIdentifier(), 
 					curJob.getType() == VehicleScheduleJob.JOB_TYPE_PICKUP);
-		cost = cost * Rebus.TIME_C / numJobs;
+		// Legs are in seconds, TIME_C is weighted for minutes
+		cost = (cost / 60) * Rebus.TIME_C / numJobs;
 		//			Log.i(TAG, ". Mileage: " + cost + "\n", true, true);
 		return cost;
 	}
@@ -0,0 +1,316 @@
+package edu.pugetsound.npastor.routing;
+
+import java.awt.geom.Point2D;
+import java.util.Arrays;
+
+import com.graphhopper.GraphHopper;
+import com.graphhopper.routing.util.DefaultEdgeFilter;
+import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.routing.util.FlagEncoder;
+import com.graphhopper.storage.Graph;
+import com.graphhopper.util.EdgeExplorer;
+import com.graphhopper.util.EdgeIterator;
+import com.graphhopper.util.EdgeSkipIterState;
+
+import edu.pugetsound.npastor.routing.RouteCache.RouteCacheBuilder;
+import edu.pugetsound.npastor.utils.Log;
+
+/**
+ * Routes whole cache rows at once. Rather than one point to point query per cell, a single
+ * one-to-all Dijkstra search runs from the row's endpoint over the street graph, and stops
+ * as soon as every trip endpoint is settled. That one search gives the travel time to every
+ * endpoint, so a row of 2N cells costs one search instead of 2N.
+ *
+ * Every endpoint is snapped to its closest graph node once, up front, by an EndpointSnapCache
+ * shared by every worker, and routes run from node to node, as they do in NodeRouteCache.
+ * Travel times are the quickest car times, as GraphHopper's fastest weighting computes them,
+ * so they agree with Routefinder's to within rounding. create() checks that they do.
+ *
+ * Rows don't go through Routefinder.getTravelTimeSecs(), so the travel time store is
+ * consulted here instead: a row whose every cell is stored is filled from the store without
+ * a search, and the times a search finds are added to the store.
+ *
+ * Search state is reused from row to row, and isn't thread safe. Each routing thread needs
+ * its own instance.
+ * @author Nathan P
+ *
+ */
+public class MatrixRoutefinder {
+
+	public static final String TAG = "MatrixRoutefinder";
+
+	private static final int INITIAL_HEAP_SIZE = 1024;
+
+	private Graph mGraph;
+	private EdgeExplorer mOutEdges;
+	private FlagEncoder mEncoder;
+
+	private static final int CHECK_SAMPLES = 8; // Cells create() compares with Routefinder
+	private static final int CHECK_TOLERANCE_SECS = 5; // Allowed difference, or CHECK_TOLERANCE of the time
+	private static final double CHECK_TOLERANCE = 0.05;
+
+	private Routefinder mRouter;
+	private EndpointSnapCache mSnaps;
+	private int[] mStoredRow; // Travel times of a row read from the store
+
+	private int mSize; // Cells per cache row
+	private int[] mNodeOf; // Snapped node of every endpoint, indexed by cache row. -1 if it didn't snap
+	private boolean[] mIsTarget; // Indexed by node
+	private int mNumTargets; // Distinct nodes endpoints snapped to
+
+	// Search state, indexed by node. A node was reached or settled by the current search
+	// only if its stamp equals mSearch, so nothing needs clearing between searches
+	private double[] mTimeSecs;
+	private int[] mReached;
+	private int[] mSettled;
+	private int mSearch;
+
+	// Binary min heap of reached nodes keyed by travel time. A node is pushed again each
+	// time its travel time improves, and its stale entries skipped when popped
+	private int[] mHeapNodes;
+	private double[] mHeapTimes;
+	private int mHeapSize;
+
+	/**
+	 * Snaps every trip endpoint to the router's street graph, if it isn't already
+	 * @param router Router whose graph to search
+	 * @param snaps Graph nodes of the trip endpoints. Shared by every routing thread
+	 */
+	public MatrixRoutefinder(Routefinder router, EndpointSnapCache snaps) {
+		mRouter = router;
+		mSnaps = snaps;
+		GraphHopper hopper = router.getGraphHopper();
+		mGraph = hopper.getGraph();
+		mEncoder = hopper.getEncodingManager().getEncoder(EncodingManager.CAR);
+		mOutEdges = mGraph.createEdgeExplorer(new DefaultEdgeFilter(mEncoder, false, true));
+
+		int numNodes = mGraph.getNodes();
+		mTimeSecs = new double[numNodes];
+		mReached = new int[numNodes];
+		mSettled = new int[numNodes];
+		mIsTarget = new boolean[numNodes];
+		mHeapNodes = new int[INITIAL_HEAP_SIZE];
+		mHeapTimes = new double[INITIAL_HEAP_SIZE];
+
+		snaps.snapAll();
+		mSize = snaps.getSize();
+		mNodeOf = new int[mSize];
+		mStoredRow = new int[mSize];
+		for(int i = 0; i < mSize; i++) {
+			mNodeOf[i] = snaps.getNode(i);
+		}
+		for(int node : mNodeOf) {
+			if(node >= 0 && !mIsTarget[node]) {
+				mIsTarget[node] = true;
+				mNumTargets++;
+			}
+		}
+	}
+
+	/**
+	 * Creates a matrix router, and checks its travel times against point to point queries
+	 * on a row of the cache. Shortcut edges are recognised through GraphHopper's
+	 * EdgeSkipIterState, so a graph library without it can't search the matrix
+	 * @param router Router whose graph to search
+	 * @param snaps Graph nodes of the trip endpoints. Shared by every routing thread
+	 * @return The router, or null if its travel times disagree with Routefinder's, in which
+	 *         case every cell should be routed on its own
+	 */
+	public static MatrixRoutefinder create(Routefinder router, EndpointSnapCache snaps) {
+		try {
+			MatrixRoutefinder matrixRouter = new MatrixRoutefinder(router, snaps);
+			if(matrixRouter.checkRow(0))
+				return matrixRouter;
+		} catch (LinkageError ex) {
+			Log.e(TAG, "Matrix routing is unsupported by this version of GraphHopper. " + ex.getMessage());
+			ex.printStackTrace();
+			return null;
+		}
+		Log.e(TAG, "Matrix travel times disagree with Routefinder's, routing each cell on its own");
+		return null;
+	}
+
+	/**
+	 * @return True if a sample of the row's searched travel times agree with Routefinder's
+	 */
+	private boolean checkRow(int i1) {
+		if(mSize == 0 || mNodeOf[i1] < 0)
+			return true;
+		search(mNodeOf[i1]);
+		int step = Math.max(1, mSize / CHECK_SAMPLES);
+		for(int i2 = 0; i2 < mSize; i2 += step) {
+			int node = mNodeOf[i2];
+			// Endpoints on the row's own node tell us nothing
+			if(node < 0 || node == mNodeOf[i1])
+				continue;
+			RouteSummary route = mRouter.findTravelTime(mNodeOf[i1], node);
+			if(route.isFound() != isSettled(node))
+				return false;
+			long diff = Math.abs(route.getTime() - getTravelTimeSecs(node));
+			if(diff > Math.max(CHECK_TOLERANCE_SECS, route.getTime() * CHECK_TOLERANCE))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Routes both rows of a trip: from its origin and from its destination to every endpoint
+	 * @param cache Builder of the cache to fill
+	 * @param tripId Identifier of the trip
+	 * @return Number of routes calculated
+	 */
+	public int routeTrip(RouteCacheBuilder cache, int tripId) {
+		return routeRow(cache, RouteCache.hash(tripId, true)) + routeRow(cache, RouteCache.hash(tripId, false));
+	}
+
+	/**
+	 * Routes a row from its endpoint to every endpoint. Cells of endpoints that can't be
+	 * reached are Routefinder.NOT_FOUND_SECS, as a point to point query would route them
+	 * @param cache Builder of the cache to fill
+	 * @param i1 The row
+	 * @return Number of routes calculated
+	 */
+	public int routeRow(RouteCacheBuilder cache, int i1) {
+		TravelTimeStore store = Routefinder.getTravelTimeStore();
+		if(store != null && readStoredRow(store, i1)) {
+			for(int i2 = 0; i2 < mSize; i2++) {
+				cache.putDirect(i1, i2, mStoredRow[i2]);
+			}
+			return mSize - 1;
+		}
+
+		search(mNodeOf[i1]);
+		Point2D from = mSnaps.getPoint(i1);
+		for(int i2 = 0; i2 < mSize; i2++) {
+			int secs = (i1 == i2) ? 0 : getTravelTimeSecs(mNodeOf[i2]);
+			cache.putDirect(i1, i2, secs);
+			// As in Routefinder, routes that aren't found aren't stored
+			if(store != null && i1 != i2 && isSettled(mNodeOf[i2]))
+				store.put(from, mSnaps.getPoint(i2), secs);
+		}
+		return mSize - 1;
+	}
+
+	/**
+	 * Reads a row from the store into mStoredRow
+	 * @return True if every cell of the row was stored
+	 */
+	private boolean readStoredRow(TravelTimeStore store, int i1) {
+		Point2D from = mSnaps.getPoint(i1);
+		for(int i2 = 0; i2 < mSize; i2++) {
+			if(i1 == i2) {
+				mStoredRow[i2] = 0;
+				continue;
+			}
+			int secs = store.get(from, mSnaps.getPoint(i2));
+			if(secs == TravelTimeStore.MISSING)
+				return false;
+			mStoredRow[i2] = secs;
+		}
+		return true;
+	}
+
+	private boolean isSettled(int node) {
+		return node >= 0 && mSettled[node] == mSearch;
+	}
+
+	/**
+	 * @return Travel time of the last search to the node, or Routefinder.NOT_FOUND_SECS
+	 */
+	private int getTravelTimeSecs(int node) {
+		// Not RouteCache.UNREACHABLE, which most caches can't store
+		if(!isSettled(node))
+			return Routefinder.NOT_FOUND_SECS;
+		return (int) Math.round(mTimeSecs[node]);
+	}
+
+	/**
+	 * Settles nodes in order of travel time from the source until every target is settled,
+	 * or no node is left to reach
+	 */
+	private void search(int source) {
+		if(++mSearch == Integer.MAX_VALUE) {
+			// Stamps wrap around. Clear them once every two billion searches
+			Arrays.fill(mReached, 0);
+			Arrays.fill(mSettled, 0);
+			mSearch = 1;
+		}
+		if(source < 0)
+			return;
+
+		mHeapSize = 0;
+		mTimeSecs[source] = 0;
+		mReached[source] = mSearch;
+		push(source, 0);
+		int targetsLeft = mNumTargets;
+		while(mHeapSize > 0) {
+			int node = mHeapNodes[0];
+			double time = mHeapTimes[0];
+			pop();
+			if(mSettled[node] == mSearch)
+				continue; // A stale entry
+			mSettled[node] = mSearch;
+			if(mIsTarget[node] && --targetsLeft == 0)
+				break;
+
+			EdgeIterator edge = mOutEdges.setBaseNode(node);
+			while(edge.next()) {
+				// Contraction shortcuts stand for paths made of real edges, which are searched anyway
+				if(edge instanceof EdgeSkipIterState && ((EdgeSkipIterState) edge).isShortcut())
+					continue;
+				int adj = edge.getAdjNode();
+				if(mSettled[adj] == mSearch)
+					continue;
+				double speedKmh = mEncoder.getSpeed(edge.getFlags());
+				if(speedKmh <= 0)
+					continue;
+				double adjTime = time + edge.getDistance() * 3.6 / speedKmh;
+				if(mReached[adj] != mSearch || adjTime < mTimeSecs[adj]) {
+					mReached[adj] = mSearch;
+					mTimeSecs[adj] = adjTime;
+					push(adj, adjTime);
+				}
+			}
+		}
+	}
+
+	private void push(int node, double time) {
+		if(mHeapSize == mHeapNodes.length) {
+			mHeapNodes = Arrays.copyOf(mHeapNodes, mHeapSize * 2);
+			mHeapTimes = Arrays.copyOf(mHeapTimes, mHeapSize * 2);
+		}
+		// Sift up
+		int i = mHeapSize++;
+		while(i > 0) {
+			int parent = (i - 1) / 2;
+			if(mHeapTimes[parent] <= time)
+				break;
+			mHeapNodes[i] = mHeapNodes[parent];
+			mHeapTimes[i] = mHeapTimes[parent];
+			i = parent;
+		}
+		mHeapNodes[i] = node;
+		mHeapTimes[i] = time;
+	}
+
+	private void pop() {
+		int node = mHeapNodes[--mHeapSize];
+		double time = mHeapTimes[mHeapSize];
+		// Sift the last entry down from the root
+		int i = 0;
+		while(true) {
+			int child = 2 * i + 1;
+			if(child >= mHeapSize)
+				break;
+			if(child + 1 < mHeapSize && mHeapTimes[child + 1] < mHeapTimes[child])
+				child++;
+			if(time <= mHeapTimes[child])
+				break;
+			mHeapNodes[i] = mHeapNodes[child];
+			mHeapTimes[i] = mHeapTimes[child];
+			i = child;
+		}
+		mHeapNodes[i] = node;
+		mHeapTimes[i] = time;
+	}
+}
@@ -0,0 +1,189 @@
+package edu.pugetsound.npastor.routing;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import edu.pugetsound.npastor.utils.Log;
+import edu.pugetsound.npastor.utils.Trip;
+
+/**
+ * A route cache on the Java heap that packs each cell into 4 bits. Travel times are close to
+ * the straight line distance between their endpoints, stretched by a typical detour and
+ * driven at a typical speed on the network, so each cell only stores how many ticks the
+ * travel time lies above or below that estimate, from -MAX_DELTA_TICKS to MAX_DELTA_TICKS.
+ * The estimate is recomputed from the endpoint coordinates on every read. Travel times
+ * further from it are kept exactly in an overflow table, about 24 bytes each.
+ *
+ * Two cells share a byte, so a cache with the same rows as a one byte ArrayRouteCache takes
+ * half the memory, plus the overflow table. freeze() logs what fraction of cells overflowed.
+ *
+ * The overflow table is locked while the cache is built. Once built and frozen, it is only
+ * read, and reads take no lock.
+ * @author Nathan P
+ *
+ */
+class NibbleRouteCache extends RouteCache {
+
+	public static final String TAG = "NibbleRouteCache";
+
+	/** Typical speed on the city's street network, in meters per second. About 27 mph */
+	private static final double NETWORK_SPEED_MPS = 12.0;
+	/** Typical ratio of driven distance to straight line distance on a street grid */
+	private static final double DETOUR_FACTOR = 1.3;
+	private static final double METERS_PER_DEGREE = 111320.0;
+
+	private static final int OVERFLOW = 0xF; // Cell value marking a travel time held in the overflow table
+	private static final int MAX_DELTA_TICKS = 7; // Cell values 0 to 14 are deltas of -7 to 7 ticks
+	private static final long EMPTY = -1;
+
+	private byte[][] mCache;
+	private int mResolutionSecs;
+
+	// Endpoint positions in meters on a local flat projection, indexed by cache row
+	private double[] mX;
+	private double[] mY;
+
+	// Open addressing overflow table, keyed by cell index. mOverflowKeys[i] == EMPTY marks a free slot
+	private long[] mOverflowKeys;
+	private int[] mOverflowSecs;
+	private int mOverflowCount;
+	private volatile boolean mFrozen; // True once built. The overflow table is then read without locking
+
+	/**
+	 * @param trips All trips in the simulation. Identifiers must run from 0 to trips.size() - 1
+	 * @param codec Sets the tick length of the stored deltas. Also the packing used when
+	 *        the cache is written to file
+	 */
+	NibbleRouteCache(ArrayList<Trip> trips, TravelTimeCodec codec) {
+		super(trips.size(), codec);
+		mResolutionSecs = codec.getResolutionSecs();
+		// Rows are an even length, so no two rows share a byte
+		mCache = new byte[mSize][mSize / 2];
+		allocateOverflow(1 << 12);
+
+		double meanLat = 0;
+		for(Trip t : trips)
+			meanLat += t.getOriginPoint().getY() + t.getDestinationPoint().getY();
+		meanLat /= Math.max(1, mSize);
+		double metersPerLon = METERS_PER_DEGREE * Math.cos(Math.toRadians(meanLat));
+
+		mX = new double[mSize];
+		mY = new double[mSize];
+		for(Trip t : trips) {
+			Point2D origin = t.getOriginPoint();
+			Point2D destination = t.getDestinationPoint();
+			int o = hash(t.getIdentifier(), true);
+			int d = hash(t.getIdentifier(), false);
+			mX[o] = origin.getX() * metersPerLon;
+			mY[o] = origin.getY() * METERS_PER_DEGREE;
+			mX[d] = destination.getX() * metersPerLon;
+			mY[d] = destination.getY() * METERS_PER_DEGREE;
+		}
+	}
+
+	@Override
+	public int getDirect(int i1, int i2) {
+		byte cell = mCache[i1][i2 >> 1];
+		int ticks = ((i2 & 1) == 0) ? cell & 0xF : (cell >>> 4) & 0xF;
+		if(ticks == OVERFLOW)
+			return mFrozen ? findOverflow((long) i1 * mSize + i2) : getOverflow((long) i1 * mSize + i2);
+		return Math.max(0, getEstimateSecs(i1, i2) + (ticks - MAX_DELTA_TICKS) * mResolutionSecs);
+	}
+
+	/**
+	 * Each cache row is only written by one thread at a time, as the routing tasks do. Cells
+	 * in the same row share bytes
+	 */
+	@Override
+	protected void putDirect(int i1, int i2, int travelTimeSecs) {
+		if(mFrozen)
+			throw new IllegalStateException("Cache is already built");
+		int deltaTicks = (int) Math.round((double) (travelTimeSecs - getEstimateSecs(i1, i2)) / mResolutionSecs);
+		int ticks;
+		// Negative times, i.e. UNREACHABLE, are always kept exactly
+		if(travelTimeSecs < 0 || Math.abs(deltaTicks) > MAX_DELTA_TICKS) {
+			putOverflow((long) i1 * mSize + i2, travelTimeSecs);
+			ticks = OVERFLOW;
+		} else {
+			ticks = deltaTicks + MAX_DELTA_TICKS;
+		}
+
+		byte[] row = mCache[i1];
+		int offset = i2 >> 1;
+		if((i2 & 1) == 0)
+			row[offset] = (byte) ((row[offset] & 0xF0) | ticks);
+		else
+			row[offset] = (byte) ((row[offset] & 0x0F) | (ticks << 4));
+	}
+
+	/**
+	 * @return Typical travel time between the specified endpoints, from their straight line distance
+	 */
+	private int getEstimateSecs(int i1, int i2) {
+		double dx = mX[i2] - mX[i1];
+		double dy = mY[i2] - mY[i1];
+		return (int) (Math.sqrt(dx * dx + dy * dy) * DETOUR_FACTOR / NETWORK_SPEED_MPS);
+	}
+
+	/**
+	 * Marks the cache built, so overflow reads no longer lock. Logs the fraction of cells
+	 * that overflowed. Nothing may be put in the cache afterwards
+	 */
+	@Override
+	synchronized void freeze() {
+		if(mFrozen)
+			return;
+		mFrozen = true;
+		long cells = (long) mSize * mSize;
+		Log.iln(TAG, mOverflowCount + " of " + cells + " cells (" + (float) mOverflowCount / Math.max(1, cells) * 100
+				+ "%) overflowed, taking " + (mOverflowKeys.length * 12L >> 20) + " MB");
+	}
+
+	private static int hashKey(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private synchronized int getOverflow(long key) {
+		return findOverflow(key);
+	}
+
+	private int findOverflow(long key) {
+		int mask = mOverflowKeys.length - 1;
+		int slot = hashKey(key) & mask;
+		while(mOverflowKeys[slot] != EMPTY) {
+			if(mOverflowKeys[slot] == key)
+				return mOverflowSecs[slot];
+			slot = (slot + 1) & mask;
+		}
+		throw new IllegalStateException("Overflowed cell " + key + " is missing from the overflow table");
+	}
+
+	private synchronized void putOverflow(long key, int travelTimeSecs) {
+		if((mOverflowCount + 1) * 2 > mOverflowKeys.length) {
+			long[] keys = mOverflowKeys;
+			int[] secs = mOverflowSecs;
+			allocateOverflow(keys.length * 2);
+			for(int i = 0; i < keys.length; i++) {
+				if(keys[i] != EMPTY)
+					putOverflow(keys[i], secs[i]);
+			}
+		}
+		int mask = mOverflowKeys.length - 1;
+		int slot = hashKey(key) & mask;
+		while(mOverflowKeys[slot] != EMPTY && mOverflowKeys[slot] != key)
+			slot = (slot + 1) & mask;
+		if(mOverflowKeys[slot] == EMPTY)
+			mOverflowCount++;
+		mOverflowKeys[slot] = key;
+		mOverflowSecs[slot] = travelTimeSecs;
+	}
+
+	private void allocateOverflow(int capacity) {
+		mOverflowKeys = new long[capacity];
+		mOverflowSecs = new int[capacity];
+		Arrays.fill(mOverflowKeys, EMPTY);
+		mOverflowCount = 0;
+	}
+}
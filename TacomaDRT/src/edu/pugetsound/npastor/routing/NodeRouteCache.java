@@ -0,0 +1,111 @@
+package edu.pugetsound.npastor.routing;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import edu.pugetsound.npastor.routing.RouteCache.RouteCacheBuilder;
+import edu.pugetsound.npastor.utils.Trip;
+
+/**
+ * A route cache over street graph nodes rather than trip endpoints. Trip endpoints are
+ * generated at random within census tracts, and many of them snap to the same graph
+ * node, especially downtown. Travel times only depend on the snapped nodes, so each
+ * endpoint is snapped once and the matrix is kept over the unique nodes only.
+ *
+ * A lookup is two levels: endpoint to node index, then node to node travel time.
+ * Use NodeRoutefinderTask to route the node matrix.
+ * @author Nathan P
+ *
+ */
+public class NodeRouteCache extends RouteCache {
+
+	public final static String TAG = "NodeRouteCache";
+
+	// Node index of every endpoint, indexed by cache row
+	private int[] mNodeOf;
+	// One endpoint location per node index, used to route the node
+	private Point2D[] mNodePoints;
+	// Graph node of every node index, -1 if its endpoint didn't snap
+	private int[] mGraphNodes;
+	private int mNumNodes;
+	private RouteCache mNodes;
+
+	/**
+	 * Snaps every trip endpoint to its graph node. Travel times are all zero until routed.
+	 * @param trips All trips in the simulation. Identifiers must run from 0 to trips.size() - 1
+	 * @param router Router to snap endpoints with
+	 * @param backend Storage backend of the node matrix, e.g BACKEND_ARRAY or BACKEND_OFF_HEAP
+	 * @param codec Packing of each cell
+	 */
+	public NodeRouteCache(ArrayList<Trip> trips, Routefinder router, int backend, TravelTimeCodec codec) {
+		super(trips.size(), codec);
+		mNodeOf = new int[mSize];
+		mNodePoints = new Point2D[mSize];
+		mGraphNodes = new int[mSize];
+
+		HashMap<Integer, Integer> nodeIndices = new HashMap<Integer, Integer>();
+		for(Trip t : trips) {
+			snap(hash(t.getIdentifier(), true), t.getOriginPoint(), router, nodeIndices);
+			snap(hash(t.getIdentifier(), false), t.getDestinationPoint(), router, nodeIndices);
+		}
+
+		// Node matrices are built by the trip pair, so round up to an even node count
+		mNodes = new RouteCacheBuilder((mNumNodes + 1) / 2, backend, codec).build();
+	}
+
+	/**
+	 * Assigns the endpoint a node index, reusing the index of its graph node if
+	 * another endpoint already snapped to it
+	 */
+	private void snap(int endpoint, Point2D location, Routefinder router, HashMap<Integer, Integer> nodeIndices) {
+		int node = router.snapToNode(location);
+		Integer index = (node < 0) ? null : nodeIndices.get(node);
+		if(index == null) {
+			// Endpoints that don't snap get a node index of their own, and route as before
+			index = mNumNodes++;
+			mNodePoints[index] = location;
+			mGraphNodes[index] = node;
+			if(node >= 0)
+				nodeIndices.put(node, index);
+		}
+		mNodeOf[endpoint] = index;
+	}
+
+	@Override
+	public int getDirect(int i1, int i2) {
+		return mNodes.getDirect(mNodeOf[i1], mNodeOf[i2]);
+	}
+
+	/**
+	 * Sets the travel time between the nodes of both endpoints, which also sets it
+	 * for every other endpoint pair on the same nodes
+	 */
+	@Override
+	protected void putDirect(int i1, int i2, int travelTimeSecs) {
+		mNodes.putDirect(mNodeOf[i1], mNodeOf[i2], travelTimeSecs);
+	}
+
+	/**
+	 * @return Number of unique nodes the trip endpoints snapped to
+	 */
+	public int getNodeCount() {
+		return mNumNodes;
+	}
+
+	// ********************************
+	//    FOR USE BY ROUTING WORKERS
+	// ********************************
+
+	Point2D getNodePoint(int node) {
+		return mNodePoints[node];
+	}
+
+	int getGraphNode(int node) {
+		return mGraphNodes[node];
+	}
+
+	void putNode(int n1, int n2, int travelTimeSecs) {
+		mNodes.putDirect(n1, n2, travelTimeSecs);
+	}
+}
@@ -0,0 +1,46 @@
+package edu.pugetsound.npastor.routing;
+
+import java.awt.geom.Point2D;
+
+import edu.pugetsound.npastor.routing.RouteCacheScheduler.ItemRouter;
+
+/**
+ * Routes the node matrix of a NodeRouteCache a row at a time. The rows are the items
+ * of a RouteCacheScheduler build
+ * @author Nathan P
+ *
+ */
+public class NodeRoutefinderTask implements ItemRouter {
+
+	public static final String TAG = "NodeRoutefinderTask";
+
+	private NodeRouteCache mCache;
+
+	/**
+	 * @param cache The cache to route
+	 */
+	public NodeRoutefinderTask(NodeRouteCache cache) {
+		mCache = cache;
+	}
+
+	/**
+	 * Routes a node to every other node
+	 * @param n1 Node index of the row
+	 * @return Number of routes calculated
+	 */
+	@Override
+	public int routeItem(int n1) {
+		Routefinder router = Routefinder.getInstance();
+		int numNodes = mCache.getNodeCount();
+		Point2D from = mCache.getNodePoint(n1);
+		int fromNode = mCache.getGraphNode(n1);
+		for(int n2 = 0; n2 < numNodes; n2++) {
+			// A node is no distance from itself
+			if(n1 == n2) continue;
+			// Route from graph node to graph node, rather than snapping both points again
+			mCache.putNode(n1, n2, router.getTravelTimeSecs(from, fromNode, 
+					mCache.getNodePoint(n2), mCache.getGraphNode(n2)));
+		}
+		return numNodes - 1;
+	}
+}
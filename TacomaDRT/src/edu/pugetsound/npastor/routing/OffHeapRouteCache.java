@@ -0,0 +1,116 @@
+package edu.pugetsound.npastor.routing;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * A route cache that stores the whole matrix in one contiguous, row-major region of
+ * direct (off-heap) memory. The region is addressed with a long index, so the matrix
+ * is not limited to 2^31 cells, and the garbage collector has a handful of buffers to
+ * track instead of one array per row.
+ *
+ * A single ByteBuffer can only hold 2^31 bytes, so the region is split into fixed-size
+ * segments. Remember to raise -XX:MaxDirectMemorySize above the matrix size.
+ * @author Nathan P
+ *
+ */
+class OffHeapRouteCache extends RouteCache {
+
+	// Segments hold 2^30 bytes, so a segment lookup is a shift and a mask
+	static final int SEGMENT_SHIFT = 30;
+	static final long SEGMENT_BYTES = 1L << SEGMENT_SHIFT;
+	private static final long SEGMENT_MASK = SEGMENT_BYTES - 1;
+
+	private ByteBuffer[] mSegments;
+	private int mCellShift;
+	private int mFirstRow; // Row held at the start of the segments. Non-zero for a range of rows
+
+	OffHeapRouteCache(int numTrips, TravelTimeCodec codec) {
+		super(numTrips, codec);
+		mCellShift = codec.getCellShift();
+		long totalBytes = ((long) mSize * mSize) << mCellShift;
+		mSegments = new ByteBuffer[numSegments(totalBytes)];
+		for(int i = 0; i < mSegments.length; i++) {
+			mSegments[i] = ByteBuffer.allocateDirect(segmentLength(totalBytes, i));
+		}
+	}
+
+	/**
+	 * Wraps existing segments, e.g. regions of a memory-mapped cache file. Segments
+	 * must be laid out as numSegments() and segmentLength() describe
+	 * @param numTrips Number of trips in the cache
+	 * @param codec Packing of each cell
+	 * @param segments The matrix, in row-major order
+	 */
+	OffHeapRouteCache(int numTrips, TravelTimeCodec codec, ByteBuffer[] segments) {
+		this(numTrips, codec, segments, 0);
+	}
+
+	/**
+	 * Wraps existing segments holding a range of the matrix's rows, e.g. a shard of a
+	 * cache file. Only rows in the range may be read or written
+	 * @param numTrips Number of trips in the whole cache
+	 * @param codec Packing of each cell
+	 * @param segments The rows, in row-major order
+	 * @param firstRow The first row held
+	 */
+	OffHeapRouteCache(int numTrips, TravelTimeCodec codec, ByteBuffer[] segments, int firstRow) {
+		super(numTrips, codec);
+		mCellShift = codec.getCellShift();
+		mSegments = segments;
+		mFirstRow = firstRow;
+	}
+
+	/**
+	 * @param totalBytes Size of the matrix in bytes
+	 * @return Number of segments needed to hold the matrix
+	 */
+	static int numSegments(long totalBytes) {
+		return (int) ((totalBytes + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+	}
+
+	/**
+	 * @param totalBytes Size of the matrix in bytes
+	 * @param segment Segment index
+	 * @return Length of the specified segment in bytes. Only the last segment may be short
+	 */
+	static int segmentLength(long totalBytes, int segment) {
+		long remaining = totalBytes - ((long) segment << SEGMENT_SHIFT);
+		return (int) Math.min(remaining, SEGMENT_BYTES);
+	}
+
+	/**
+	 * Writes any changes to a file-backed cache out to the file. Does nothing
+	 * for a cache in anonymous memory
+	 */
+	void force() {
+		for(ByteBuffer segment : mSegments) {
+			if(segment instanceof MappedByteBuffer)
+				((MappedByteBuffer) segment).force();
+		}
+	}
+
+	@Override
+	public int getDirect(int i1, int i2) {
+		// Segments are a power of two bytes long, so a cell never straddles two of them
+		long offset = ((long) (i1 - mFirstRow) * mSize + i2) << mCellShift;
+		ByteBuffer segment = mSegments[(int) (offset >>> SEGMENT_SHIFT)];
+		int position = (int) (offset & SEGMENT_MASK);
+		int ticks = (mCellShift == 0) ? segment.get(position) & 0xFF : segment.getShort(position) & 0xFFFF;
+		return mCodec.decode(ticks);
+	}
+
+	@Override
+	protected void putDirect(int i1, int i2, int travelTimeSecs) {
+		// Absolute puts don't touch the buffer position, so worker threads
+		// can fill disjoint rows concurrently
+		long offset = ((long) (i1 - mFirstRow) * mSize + i2) << mCellShift;
+		ByteBuffer segment = mSegments[(int) (offset >>> SEGMENT_SHIFT)];
+		int position = (int) (offset & SEGMENT_MASK);
+		int ticks = mCodec.encode(travelTimeSecs);
+		if(mCellShift == 0)
+			segment.put(position, (byte) ticks);
+		else
+			segment.putShort(position, (short) ticks);
+	}
+}
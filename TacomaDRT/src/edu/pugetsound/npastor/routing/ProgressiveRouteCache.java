@@ -0,0 +1,153 @@
+package edu.pugetsound.npastor.routing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.pugetsound.npastor.TacomaDRTMain;
+import edu.pugetsound.npastor.routing.RouteCache.RouteCacheBuilder;
+import edu.pugetsound.npastor.routing.RouteCacheScheduler.ItemRouter;
+import edu.pugetsound.npastor.utils.Trip;
+
+/**
+ * A route cache that is built while it is read, so the simulation can start right away.
+ * Each trip's rows are routed by a future, and the futures run in the order the scheduler
+ * will need them: by the trip's call in time, which puts the static requests, called in
+ * before service begins, first. A read of a row that isn't ready yet blocks until it is.
+ * If its future hasn't started, the reading thread routes the row itself rather than wait
+ * for the workers to reach it.
+ *
+ * The workers are a RouteCacheScheduler build on the shared executor, with the trips in
+ * call in order as its items. If a row fails, or the build is cancelled, the workers stop,
+ * and the remaining rows are routed by the threads that read them.
+ * @author Nathan P
+ *
+ */
+public class ProgressiveRouteCache extends RouteCache {
+
+	public static final String TAG = "ProgressiveRouteCache";
+
+	private RouteCache mCache;
+	private FutureTask<Integer>[] mRows; // Routes both rows of each trip, indexed by trip identifier
+	private AtomicLong mStalls; // Reads that had to wait on a row
+	private RouteCacheScheduler mScheduler; // Routes the rows in the background
+
+	private EndpointSnapCache mSnaps; // Each endpoint is snapped to the graph once
+
+	/**
+	 * Starts building the cache in the background
+	 * @param trips All trips in the simulation. Identifiers must run from 0 to trips.size() - 1
+	 * @param backend Storage backend, e.g. RouteCache.BACKEND_OFF_HEAP
+	 * @param codec Packing of each cell
+	 * @param numThreads Number of background routing workers
+	 */
+	@SuppressWarnings("unchecked")
+	public ProgressiveRouteCache(final ArrayList<Trip> trips, int backend, TravelTimeCodec codec, int numThreads) {
+		super(trips.size(), codec);
+		final RouteCacheBuilder builder = new RouteCacheBuilder(trips.size(), backend, codec);
+		mCache = builder.build();
+		mStalls = new AtomicLong();
+		mSnaps = new EndpointSnapCache(Routefinder.getInstance(), trips);
+
+		final Trip[] byCallIn = trips.toArray(new Trip[trips.size()]);
+		Arrays.sort(byCallIn, new Comparator<Trip>() {
+			@Override
+			public int compare(Trip t1, Trip t2) {
+				return t1.getCallInTime() - t2.getCallInTime();
+			}
+		});
+
+		mRows = new FutureTask[trips.size()];
+		for(final Trip t : trips) {
+			mRows[t.getIdentifier()] = new FutureTask<Integer>(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					return RoutefinderTask.routeTrip(builder, mSnaps, t, trips);
+				}
+			});
+		}
+
+		mScheduler = new RouteCacheScheduler(new ItemRouter() {
+			@Override
+			public int routeItem(int item) {
+				int tripId = byCallIn[item].getIdentifier();
+				FutureTask<Integer> row = mRows[tripId];
+				// Does nothing if a read has already started the row
+				row.run();
+				if(!row.isDone())
+					return 0;
+				try {
+					return row.get();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted routing trip " + tripId, ex);
+				} catch (ExecutionException ex) {
+					// Stops the background build. Reads of the row see the same error
+					throw new IllegalStateException("Unable to route trip " + tripId, ex.getCause());
+				}
+			}
+		}, byCallIn.length, 1, new AtomicLong());
+		mScheduler.start(TacomaDRTMain.getExecutor(), numThreads);
+	}
+
+	@Override
+	public int getDirect(int i1, int i2) {
+		FutureTask<Integer> row = mRows[i1 / 2];
+		if(!row.isDone()) {
+			mStalls.incrementAndGet();
+			// Route the row here if no worker has started it. Does nothing if one has
+			row.run();
+			try {
+				row.get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted waiting for cache row " + i1, ex);
+			} catch (ExecutionException ex) {
+				throw new IllegalStateException("Unable to route cache row " + i1, ex.getCause());
+			}
+		}
+		return mCache.getDirect(i1, i2);
+	}
+
+	@Override
+	protected void putDirect(int i1, int i2, int travelTimeSecs) {
+		mCache.putDirect(i1, i2, travelTimeSecs);
+	}
+
+	/**
+	 * Stops routing in the background. Rows that aren't routed yet are routed when they are read
+	 */
+	public void cancel() {
+		mScheduler.cancel();
+	}
+
+	/**
+	 * @return The error that stopped routing in the background, or null
+	 */
+	public Throwable getError() {
+		return mScheduler.getError();
+	}
+
+	/**
+	 * @return Number of trips whose rows are routed
+	 */
+	public int getReadyCount() {
+		int ready = 0;
+		for(FutureTask<Integer> row : mRows) {
+			if(row.isDone())
+				ready++;
+		}
+		return ready;
+	}
+
+	/**
+	 * @return Number of reads that had to wait for their row to be routed
+	 */
+	public long getStallCount() {
+		return mStalls.get();
+	}
+}
@@ -81,6 +81,7 @@ public class Rebus {
 	private int mTotalJobsHandled;
 	private ExecutorService mScheduleExecutor;
 	private RouteCache mCache;
+	private ZoneTravelTimes mZones;
 	private static int mHints;
 	
 	private Point2D mServiceAreaCentroid;
@@ -99,12 +100,23 @@ public class Rebus {
 		mServiceAreaCentroid = CityBoundaryShp.getInstance().getCityCentroid();
 	}
 	
+	/**
+	 * Sets the zone travel times used to reject hopeless insertions before
+	 * the route cache is consulted. Zone times are estimates, so a few feasible
+	 * insertions may be rejected too
+	 * @param zones The zone table, or null to check every insertion exactly
+	 */
+	public void setZoneTravelTimes(ZoneTravelTimes zones) {
+		mZones = zones;
+	}
+	
 	public int getQueueSize() {
 		return mJobQueue.size();
 	}	
 	
 	public void onRebusFinished() {
 		mCache = null;
+		mZones = null;
 		mScheduleExecutor.shutdown();
 	}
 	
@@ -217,7 +229,7 @@ public class Rebus {
 				scheduleCopy.add(existingSchedule.get(j));
 			}
 			RebusScheduleTask task = new RebusScheduleTask(i, v, scheduleCopy, 
-					mCache, pickupJob, dropoffJob, results, latch);
+					mCache, mZones, pickupJob, dropoffJob, results, latch);
 			mScheduleExecutor.execute(task);
 		}
 		
@@ -271,8 +283,10 @@ public class Rebus {
 	 * @param cache The route cache
 	 * @param vehicleNum the vehicle number if this should update a working schedule,
 	 *                   or -1 if this should update the finalized schedule 
+	 * @return Index of the first job that can't be reached from the job before it
+	 *         (the cache reports the leg as UNREACHABLE), or -1 if every leg can be driven
 	 */
-	public static void updateServiceTimes(ArrayList<VehicleScheduleJob> schedule, RouteCache cache, int vehicleNum, int lastMove) {
+	public static int updateServiceTimes(ArrayList<VehicleScheduleJob> schedule, RouteCache cache, int vehicleNum, int lastMove) {
 		
 		// The last job whose service time is guaranteed correct is at 2 indices previous.
 		// The previous job likely swapped with the job at lastMove, rendering its service
@@ -284,20 +298,22 @@ public class Rebus {
 
 		// Initialize current time to the service time of our last trustworthy job. Or,
 		// if it turns out that the last trustworthy job is that first pickup, initialize
-		// time to its requested start time
-		int curTime;
+		// time to its requested start time. Time is tracked in seconds so that legs
+		// shorter than a minute still add up
+		int curTimeSecs;
+		int unreachableIdx = -1;
 		if(idx == 1) {
-			curTime = schedule.get(idx).getStartTime();
+			curTimeSecs = schedule.get(idx).getStartTime() * 60;
 			// In this case we must also initialize service time
 			if(vehicleNum < 0)
-				schedule.get(idx).setServiceTime(curTime);
+				schedule.get(idx).setServiceTimeSecs(curTimeSecs);
 			else
-				schedule.get(idx).setWorkingServiceTime(vehicleNum, curTime);
+				schedule.get(idx).setWorkingServiceTimeSecs(vehicleNum, curTimeSecs);
 		} else {
 			if(vehicleNum < 0)
-				curTime = schedule.get(idx).getServiceTime();
+				curTimeSecs = schedule.get(idx).getServiceTimeSecs();
 			else
-				curTime = schedule.get(idx).getWorkingServiceTime(vehicleNum);
+				curTimeSecs = schedule.get(idx).getWorkingServiceTimeSecs(vehicleNum);
 		}		
 		
 		// Start at the previously determined index PLUS ONE. We already know that the job
@@ -308,42 +324,52 @@ public class Rebus {
 			
 			// Update the current time by adding in transit time from last job to this job
 			VehicleScheduleJob lastJob = schedule.get(i-1);
+			int lastLegSecs;
 			if(lastJob.nextJobIs(vehicleNum, curJob)) {
-				curTime += lastJob.getTimeToNextJob(vehicleNum);
+				lastLegSecs = lastJob.getTimeToNextJobSecs(vehicleNum);
 			} else {
 				// If this distance was not known, check the cache.
 				boolean lastJobIsOrigin = (lastJob.getType() == VehicleScheduleJob.JOB_TYPE_PICKUP);
 				int lastJobId = lastJob.getTrip().getIdentifier();
 
-				byte lastLegMins = cache.getHash(lastJobId, lastJobIsOrigin, 
+				lastLegSecs = cache.getHash(lastJobId, lastJobIsOrigin, 
 						curJob.getTrip().getIdentifier(), type == VehicleScheduleJob.JOB_TYPE_PICKUP);
 				
-				// Update the current time
-				curTime += lastLegMins;
-				
 				// Update the previous job
 				lastJob.setNextJob(vehicleNum, curJob);
-				lastJob.setTimeToNextJob(vehicleNum, lastLegMins);
+				lastJob.setTimeToNextJobSecs(vehicleNum, lastLegSecs);
+			}
+			
+			// Update the current time. Keep going past an unreachable leg so every service
+			// time stays current, since later updates trust the times before lastMove
+			if(lastLegSecs == RouteCache.UNREACHABLE) {
+				if(unreachableIdx < 0)
+					unreachableIdx = i;
+			} else {
+				curTimeSecs += lastLegSecs;
 			}
 			
 			// Deal with wait time. The service time might occur before the requested start time for a 
 			// pickup job. This indicates that the vehicle has to wait (idle) at this particular stop
 			// until the requested service time. Wait time is undesirable.
-			if(curTime < curJob.getStartTime()) {
-				curJob.setWaitTime(vehicleNum, curJob.getStartTime() - curTime);
+			int startTimeSecs = curJob.getStartTime() * 60;
+			if(curTimeSecs < startTimeSecs) {
+				// Wait time is still kept in whole minutes, rounded
+				curJob.setWaitTime(vehicleNum, (startTimeSecs - curTimeSecs + 30) / 60);
 				
 				// Now fast-forward any vehicle idle time.
-				curTime = curJob.getStartTime();
+				curTimeSecs = startTimeSecs;
 			} else {
 				curJob.setWaitTime(vehicleNum, 0);
 			}
 
 			// Finally, we can update the current job's service time.
 			if(vehicleNum == -1)
-				curJob.setServiceTime(curTime);
+				curJob.setServiceTimeSecs(curTimeSecs);
 			else 
-				curJob.setWorkingServiceTime(vehicleNum, curTime);
+				curJob.setWorkingServiceTimeSecs(vehicleNum, curTimeSecs);
 		}
+		return unreachableIdx;
 	}
 	
 	/**
@@ -28,9 +28,10 @@ public class RebusScheduleTask implements Runnable {
 	private ScheduleResult[] mResults;
 	private CountDownLatch mLatch;
 	private RouteCache mCache;
+	private ZoneTravelTimes mZones;
 	
 	public RebusScheduleTask (int vehicleIndex, Vehicle vehicle, ArrayList<VehicleScheduleJob> schedule,
-							RouteCache cache, VehicleScheduleJob pickupJob, 
+							RouteCache cache, ZoneTravelTimes zones, VehicleScheduleJob pickupJob, 
 							VehicleScheduleJob dropoffJob, ScheduleResult[] results, CountDownLatch latch) {
 		mVehiclePlanIndex = vehicleIndex;
 		mPickupJob = pickupJob;
@@ -40,6 +41,7 @@ public class RebusScheduleTask implements Runnable {
 		mResults = results;
 		mLatch = latch;		
 		mCache = cache;
+		mZones = zones;
 		mLoadCost = new LoadCost(mVehiclePlanIndex, mCache);
 	}
 
@@ -113,6 +115,10 @@ public class RebusScheduleTask implements Runnable {
 //					Log.info(TAG, "-------BREAKING ON INDEX TOO HIGH");
 					break;
 				}
+				// (if s1 just moved and can't possibly be reached within its window, stop as in B. below)
+				if(lastMove == pickupIndex && isPickupHopeless(pickupIndex)) {
+					break outerloop;
+				}
 				FeasibilityResult feasResult = checkScheduleFeasibility(mSchedule, mVehiclePlanIndex, lastMove);
 				int feasCode = feasResult.resultCode;
 				VehicleScheduleJob failsOn = feasResult.failsOn; // The job the test failed on
@@ -173,6 +179,27 @@ public class RebusScheduleTask implements Runnable {
 		return schedResult;
 	}
 	
+	/**
+	 * Pre-screens the pickup window of s1 with zone travel times. Jobs before s1 keep the
+	 * service times planned for them, so the vehicle can't leave the previous stop any
+	 * earlier. If even the zone estimate of the shortest drive from there misses the window,
+	 * the exact check is expected to fail on it. The estimate isn't a guaranteed bound, so
+	 * this can occasionally reject a feasible insertion
+	 * @param pickupIndex Index of s1 in the schedule
+	 * @return True if s1 is expected to violate its pickup window, false if it might not
+	 */
+	private boolean isPickupHopeless(int pickupIndex) {
+		if(mZones == null || Rebus.isSettingEnabled(Rebus.SOFT_CONSTRAINTS))
+			return false;
+		VehicleScheduleJob prevJob = mSchedule.get(pickupIndex - 1);
+		// The first stop's service time is its start time, no travel to it is counted
+		if(prevJob.getType() == VehicleScheduleJob.JOB_TYPE_START)
+			return false;
+		int earliestArrivalSecs = prevJob.getServiceTimeSecs() 
+				+ mZones.getMinEstimateSecs(prevJob.getLocation(), mPickupJob.getLocation());
+		return earliestArrivalSecs > (mPickupJob.getStartTime() + Constants.PICKUP_SERVICE_WINDOW) * 60;
+	}
+	
 	/**
 	 * Checks the feasibility of the given schedule. A schedule will FAIL the feasibility test if a time window at
 	 * any stop is not satisfied, if the maximum travel time for any trip is exceeded, or if the vehicle capacity
@@ -186,7 +213,14 @@ public class RebusScheduleTask implements Runnable {
 		int numPassengers = 0;
 		FeasibilityResult result = new FeasibilityResult();
 		
-		Rebus.updateServiceTimes(schedule, mCache, vehicleNum, lastMove);
+		int unreachableIdx = Rebus.updateServiceTimes(schedule, mCache, vehicleNum, lastMove);
+		
+		// A leg the cache knows can never be driven fails the schedule, even with soft constraints
+		if(unreachableIdx >= 0) {
+			result.failsOn = schedule.get(unreachableIdx);
+			result.resultCode = FeasibilityResult.FAIL_UNREACHABLE;
+			return result;
+		}
 		
 		// If soft constraints are enabled, all schedules pass the feasibility check
 		if(Rebus.isSettingEnabled(Rebus.SOFT_CONSTRAINTS)) {
@@ -216,7 +250,7 @@ public class RebusScheduleTask implements Runnable {
 				}
 				// Check if pickup window is satisfied
 				// If current time exceeds the max pickup window, fail the feasibility test
-				if(curJob.getWorkingServiceTime(mVehiclePlanIndex) > curJob.getStartTime() + Constants.PICKUP_SERVICE_WINDOW) {
+				if(curJob.getWorkingServiceTimeSecs(mVehiclePlanIndex) > (curJob.getStartTime() + Constants.PICKUP_SERVICE_WINDOW) * 60) {
 					result.failsOn = curJob;
 					result.resultCode = FeasibilityResult.FAIL_WINDOW;
 					break;
@@ -226,8 +260,8 @@ public class RebusScheduleTask implements Runnable {
 				numPassengers--;
 
 				// Get the travel time between last location and here
-				int totalTripTravelTime = curJob.getWorkingServiceTime(mVehiclePlanIndex) 
-						- curJob.getCorrespondingJob().getWorkingServiceTime(mVehiclePlanIndex);
+				int totalTripTravelTime = curJob.getWorkingServiceTimeSecs(mVehiclePlanIndex) 
+						- curJob.getCorrespondingJob().getWorkingServiceTimeSecs(mVehiclePlanIndex);
 				
 				// If the total trip travel time exceeds the max allowable trip travel time,
 				// fail the feasibility test.
@@ -247,11 +281,10 @@ public class RebusScheduleTask implements Runnable {
 	/**
 	 * Calculates the maximum allowable travel time for this trip
 	 * @param t The trip
-	 * @return The max allowable travel time for this trip in minutes
+	 * @return The max allowable travel time for this trip in seconds
 	 */
 	private float maxTravelTime(Trip t) {
-		int timeMins = (int) t.getRoute().getTime() / 60;
-		return timeMins * Rebus.MAX_TRAVEL_COEFF;
+		return t.getRoute().getTime() * Rebus.MAX_TRAVEL_COEFF;
 	}
 	
 	/**
@@ -264,6 +297,7 @@ public class RebusScheduleTask implements Runnable {
 		public static final int FAIL_MAX_TRAVEL_TIME = 1; // Excessive trip time
 		public static final int FAIL_WINDOW = 2; // Pickup too late
 		public static final int FAIL_EARLY_SERVICE = 4; // Pickup too early
+		public static final int FAIL_UNREACHABLE = 5; // Stop can't be reached from the previous stop in time
 		public static final int SUCCESS = 3;
 		
 		public VehicleScheduleJob failsOn;
@@ -0,0 +1,82 @@
+package edu.pugetsound.npastor.routing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import edu.pugetsound.npastor.routing.RouteCache.RouteCacheBuilder;
+import edu.pugetsound.npastor.utils.Trip;
+
+/**
+ * A read-only view of a subset of another route cache's trips. Trips of the subset are
+ * numbered from 0, as every cache requires, and each maps to its identifier in the source
+ * cache, so a sample of a large trip set can use the large set's cache without routing it
+ * again. Use extract() to copy the subset into a compact cache of its own.
+ * @author Nathan P
+ *
+ */
+public class RemappedRouteCache extends RouteCache {
+
+	private RouteCache mSource;
+	private int[] mSourceIndex; // Source cache index of every index in this cache
+
+	/**
+	 * @param source The cache to view
+	 * @param trips Trips of the subset. Identifiers must run from 0 to trips.size() - 1, and
+	 *        each trip's source identifier must be its identifier in the source cache
+	 */
+	public RemappedRouteCache(RouteCache source, ArrayList<Trip> trips) {
+		super(trips.size(), source.getCodec());
+		mSource = source;
+		mSourceIndex = new int[mSize];
+		int sourceTrips = source.getSize() / 2;
+		for(Trip t : trips) {
+			int sourceId = t.getSourceIdentifier();
+			if(sourceId < 0 || sourceId >= sourceTrips)
+				throw new IllegalArgumentException("Trip " + t.getIdentifier() + " has source identifier "
+						+ sourceId + ", but the source cache holds " + sourceTrips + " trips");
+			mSourceIndex[hash(t.getIdentifier(), true)] = hash(sourceId, true);
+			mSourceIndex[hash(t.getIdentifier(), false)] = hash(sourceId, false);
+		}
+	}
+
+	@Override
+	public int getDirect(int i1, int i2) {
+		return mSource.getDirect(mSourceIndex[i1], mSourceIndex[i2]);
+	}
+
+	@Override
+	protected void putDirect(int i1, int i2, int travelTimeSecs) {
+		throw new UnsupportedOperationException("Remapped caches are read-only");
+	}
+
+	/**
+	 * Copies the subset's rows and columns into a new cache. The source cache is read
+	 * a row at a time, in the order of its rows, so a file-backed source is read close
+	 * to sequentially
+	 * @param backend Storage backend of the new cache, e.g. RouteCache.BACKEND_OFF_HEAP
+	 * @return The new cache, packed with the source cache's codec
+	 */
+	public RouteCache extract(int backend) {
+		// Visit rows in source order. Subset trips needn't be ordered like their source trips
+		Integer[] rows = new Integer[mSize];
+		for(int i = 0; i < mSize; i++) {
+			rows[i] = i;
+		}
+		Arrays.sort(rows, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i1, Integer i2) {
+				return mSourceIndex[i1] - mSourceIndex[i2];
+			}
+		});
+
+		RouteCacheBuilder builder = new RouteCacheBuilder(mSize / 2, backend, mCodec);
+		for(int i1 : rows) {
+			int sourceRow = mSourceIndex[i1];
+			for(int i2 = 0; i2 < mSize; i2++) {
+				builder.putDirect(i1, i2, mSource.getDirect(sourceRow, mSourceIndex[i2]));
+			}
+		}
+		return builder.build();
+	}
+}
@@ -1,18 +1,43 @@
 package edu.pugetsound.npastor.routing;
 
+import java.util.ArrayList;
+
+import edu.pugetsound.npastor.utils.Trip;
+
 /**
  * An immutable route cache. Use RouteCacheBuilder to instantiate.
+ *
+ * The cache is a square matrix of travel times between every trip endpoint. Each trip
+ * owns two consecutive rows (and columns): its origin, then its destination. How the
+ * matrix is stored is left to the backend, see RouteCacheBuilder. Dense backends pack
+ * each cell with a TravelTimeCodec.
  * @author Nathan P
  *
  */
-public class RouteCache {
-	
-	public final static String TAG = "RouteCache"; 
-
-	private byte[][] mCache;
-	
-	private RouteCache(byte[][] cache) {
-		mCache = cache;
+public abstract class RouteCache {
+
+	public final static String TAG = "RouteCache";
+
+	// *************************
+	//     Storage backends
+	// *************************
+	/** Jagged byte[][] on the Java heap. One array per row, fine for small trip sets */
+	public static final int BACKEND_ARRAY = 0;
+	/** One contiguous, long-indexed region in direct (off-heap) memory. Use for large trip sets */
+	public static final int BACKEND_OFF_HEAP = 1;
+	/** 4 bits per cell on the Java heap, above a straight line lower bound. Needs trip endpoints, see NibbleRouteCache */
+	public static final int BACKEND_NIBBLE = 2;
+
+	/** Travel time of a route that can never be driven in a feasible schedule. See SparseRouteCache */
+	public static final int UNREACHABLE = -1;
+
+	// Number of rows (and columns) in the matrix
+	protected final int mSize;
+	protected final TravelTimeCodec mCodec;
+
+	protected RouteCache(int numTrips, TravelTimeCodec codec) {
+		mSize = numTrips * 2;
+		mCodec = codec;
 	}
 
 	/**
@@ -22,64 +47,147 @@ public class RouteCache {
 	 * @param t1Origin True if route begins at the first trip's origin, false if it begins at the destination
 	 * @param t2Id Id of second trip
 	 * @param t2Origin True if route ends at second trip's origin, false if it ends at the destination
-	 * @return The travel time between the locations specified
+	 * @return The travel time in seconds between the locations specified, or UNREACHABLE
 	 */
-	public byte getHash(int t1Id, boolean t1Origin, int t2Id, boolean t2Origin) {
-		int[] indices = hash(t1Id, t1Origin, t2Id, t2Origin);
-		return mCache[indices[0]][indices[1]];
+	public int getHash(int t1Id, boolean t1Origin, int t2Id, boolean t2Origin) {
+		return getDirect(hash(t1Id, t1Origin), hash(t2Id, t2Origin));
 	}
-	
-	public byte getDirect(int i1, int i2) {
-		return mCache[i1][i2];
+
+	/**
+	 * Gets the element at the specified cache indices
+	 * @param i1 Row index
+	 * @param i2 Column index
+	 * @return The travel time in seconds between the locations specified, or UNREACHABLE
+	 */
+	public abstract int getDirect(int i1, int i2);
+
+	/**
+	 * Puts an element in the cache. Only the builder should write to a cache
+	 * @param i1 Row index
+	 * @param i2 Column index
+	 * @param travelTimeSecs Travel time in seconds. It is stored at the resolution of the codec
+	 */
+	protected abstract void putDirect(int i1, int i2, int travelTimeSecs);
+
+	/**
+	 * @return The number of rows (and columns) in the cache, which is twice the number of trips
+	 */
+	public int getSize() {
+		return mSize;
 	}
-	
+
 	/**
-	 * Hashes the specified route, returning an array of cache indices where the
-	 * route can be found
-	 * @param t1Id Id of first trip
-	 * @param t1Origin True if route begins at the first trip's origin, false if it begins at the destination
-	 * @param t2Id Id of second trip
-	 * @param t2Origin True if route ends at second trip's origin, false if it ends at the destination
-	 * @return
+	 * @return The codec cells are packed with
+	 */
+	public TravelTimeCodec getCodec() {
+		return mCodec;
+	}
+
+	/**
+	 * Hashes the specified trip endpoint, returning the cache index (row or column)
+	 * where routes to or from it can be found
+	 * @param tId Id of the trip
+	 * @param tOrigin True for the trip's origin, false for its destination
+	 * @return The cache index of the endpoint
+	 */
+	static int hash(int tId, boolean tOrigin) {
+		return tId * 2 + (tOrigin ? 0 : 1);
+	}
+
+	/**
+	 * Called once the cache is fully built. Caches that lock while they're written can stop
+	 * locking reads from here on
 	 */
-	private static int[] hash(int t1Id, boolean t1Origin, int t2Id, boolean t2Origin) {
-		int[] indices = new int[2];
-		indices[0] = t1Id * 2 + (t1Origin ? 0 : 1);
-		indices[1] = t2Id * 2 + (t2Origin ? 0 : 1);
-		return indices;
+	void freeze() {
 	}
-	
+
 	/**
 	 * A route cache builder
 	 * @author npastor
 	 *
 	 */
 	public static class RouteCacheBuilder {
-		
-		private byte[][] mCache;
-		
+
+		private RouteCache mCache;
+
+		/**
+		 * Builds an off-heap cache, which has no row objects for the garbage
+		 * collector to trace and no 2^31 element ceiling
+		 * @param numTrips Number of trips in the cache
+		 */
 		public RouteCacheBuilder(int numTrips) {
-			mCache = new byte[numTrips*2][numTrips*2];
+			this(numTrips, BACKEND_OFF_HEAP, TravelTimeCodec.DEFAULT);
 		}
-		
-		public void putHash(int t1Id, boolean t1Origin, int t2Id, boolean t2Origin, byte value) {
-			int[] indices = hash(t1Id, t1Origin, t2Id, t2Origin);
-			mCache[indices[0]][indices[1]] = value;
+
+		/**
+		 * @param numTrips Number of trips in the cache
+		 * @param backend Storage backend, e.g BACKEND_ARRAY or BACKEND_OFF_HEAP
+		 * @param codec Packing of each cell
+		 */
+		public RouteCacheBuilder(int numTrips, int backend, TravelTimeCodec codec) {
+			switch(backend) {
+				case BACKEND_ARRAY:
+					mCache = new ArrayRouteCache(numTrips, codec);
+					break;
+				case BACKEND_OFF_HEAP:
+					mCache = new OffHeapRouteCache(numTrips, codec);
+					break;
+				case BACKEND_NIBBLE:
+					throw new IllegalArgumentException("The nibble backend needs the trips, not just their number");
+				default:
+					throw new IllegalArgumentException("Unknown route cache backend: " + backend);
+			}
 		}
-		
+
+		/**
+		 * @param trips All trips in the simulation. Identifiers must run from 0 to trips.size() - 1
+		 * @param backend Storage backend. Any backend, including BACKEND_NIBBLE
+		 * @param codec Packing of each cell. For BACKEND_NIBBLE, only its resolution is used
+		 */
+		public RouteCacheBuilder(ArrayList<Trip> trips, int backend, TravelTimeCodec codec) {
+			if(backend == BACKEND_NIBBLE)
+				mCache = new NibbleRouteCache(trips, codec);
+			else
+				mCache = new RouteCacheBuilder(trips.size(), backend, codec).build();
+		}
+
+		/**
+		 * Builds into an existing cache, e.g. one mapped from a file
+		 * @param cache The cache to fill
+		 */
+		RouteCacheBuilder(RouteCache cache) {
+			mCache = cache;
+		}
+
+		/**
+		 * Puts an element in the cache
+		 * @param t1Id Id of first trip
+		 * @param t1Origin True if route begins at the first trip's origin, false if it begins at the destination
+		 * @param t2Id Id of second trip
+		 * @param t2Origin True if route ends at second trip's origin, false if it ends at the destination
+		 * @param travelTimeSecs Travel time in seconds
+		 */
+		public void putHash(int t1Id, boolean t1Origin, int t2Id, boolean t2Origin, int travelTimeSecs) {
+			mCache.putDirect(hash(t1Id, t1Origin), hash(t2Id, t2Origin), travelTimeSecs);
+		}
+
 		/**
 		 * Puts an element in the cache at the specified index. This should be used with care,
 		 * for most access cases, putHash() is desirable
 		 * @param i1 First index
 		 * @param i2 Second index
-		 * @param value Value to insert at specified location
+		 * @param travelTimeSecs Travel time in seconds to insert at specified location
 		 */
-		public void putDirect(int i1, int i2, byte value) {
-			mCache[i1][i2] = value;
+		public void putDirect(int i1, int i2, int travelTimeSecs) {
+			mCache.putDirect(i1, i2, travelTimeSecs);
 		}
-		
+
+		/**
+		 * @return The cache. Nothing should be put in it afterwards
+		 */
 		public RouteCache build() {
-			return new RouteCache(mCache);
+			mCache.freeze();
+			return mCache;
 		}
 	}
 }
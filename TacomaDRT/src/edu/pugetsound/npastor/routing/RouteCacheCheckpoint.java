@@ -0,0 +1,204 @@
+package edu.pugetsound.npastor.routing;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import edu.pugetsound.npastor.routing.RouteCache.RouteCacheBuilder;
+import edu.pugetsound.npastor.utils.Log;
+
+/**
+ * A route cache build that survives being interrupted. The cache is built in place in a
+ * memory-mapped partial cache file, and rows are routed in blocks of consecutive trips.
+ * Whenever a block is complete, the file is flushed to disk and the block is appended to
+ * a manifest. Opening the checkpoint again after a crash keeps every block listed in the
+ * manifest, so only unfinished blocks need to be routed again.
+ *
+ *   Manifest layout (text):
+ *   tripsPerBlock
+ *   completed block index, one per line
+ *
+ * Once every block is complete, finish() turns the partial file into the cache file.
+ * @author Nathan P
+ *
+ */
+public class RouteCacheCheckpoint {
+
+	public static final String TAG = "RouteCacheCheckpoint";
+
+	/** Trips routed between flushes. A block of 64 trips takes minutes on a large trip set */
+	public static final int DEFAULT_TRIPS_PER_BLOCK = 64;
+
+	private String mPartialPath;
+	private String mManifestPath;
+	private OffHeapRouteCache mCache;
+	private int mNumTrips;
+	private int mTripsPerBlock;
+	private boolean[] mComplete;
+	private int mNumComplete;
+	private FileOutputStream mManifestStream;
+	private PrintWriter mManifest;
+
+	/**
+	 * Opens a checkpointed build, resuming the partial cache file if it was started with the
+	 * same trips, graph and codec, and starting over otherwise
+	 * @param partialPath The partial cache file
+	 * @param manifestPath The progress manifest
+	 * @param numTrips Number of trips in the cache. Trip identifiers run from 0 to numTrips - 1
+	 * @param tripsPerBlock Trips per block
+	 * @param codec Packing of each cell
+	 * @param fingerprint Fingerprint of the graph in use
+	 * @throws IOException If the checkpoint files can't be created
+	 */
+	public RouteCacheCheckpoint(String partialPath, String manifestPath, int numTrips, int tripsPerBlock,
+			TravelTimeCodec codec, long fingerprint) throws IOException {
+		mPartialPath = partialPath;
+		mManifestPath = manifestPath;
+		mNumTrips = numTrips;
+		mTripsPerBlock = tripsPerBlock;
+		mComplete = new boolean[(numTrips + tripsPerBlock - 1) / tripsPerBlock];
+
+		if(new File(partialPath).exists() && new File(manifestPath).exists()) {
+			try {
+				mCache = RouteCacheFile.map(partialPath, numTrips, fingerprint, true);
+				if(mCache.getCodec().getResolutionSecs() != codec.getResolutionSecs()
+						|| mCache.getCodec().getBytesPerCell() != codec.getBytesPerCell())
+					throw new IOException("Partial cache was built with " + mCache.getCodec());
+				readManifest();
+				Log.iln(TAG, "Resuming route cache build at " + partialPath + ". " + mNumComplete
+						+ " of " + mComplete.length + " blocks are complete");
+			} catch (IOException ex) {
+				Log.iln(TAG, "Unable to resume partial cache at " + partialPath + ", starting over. "
+						+ ex.getMessage());
+				mCache = null;
+				mNumComplete = 0;
+				mComplete = new boolean[mComplete.length];
+			}
+		}
+		boolean resumed = mCache != null;
+		if(!resumed)
+			mCache = RouteCacheFile.create(partialPath, numTrips, codec, fingerprint);
+
+		mManifestStream = new FileOutputStream(manifestPath, resumed);
+		mManifest = new PrintWriter(mManifestStream);
+		if(!resumed) {
+			mManifest.println(mTripsPerBlock);
+			syncManifest();
+		}
+	}
+
+	/**
+	 * @return A builder that writes into the partial cache file
+	 */
+	public RouteCacheBuilder getBuilder() {
+		return new RouteCacheBuilder(mCache);
+	}
+
+	public int getTripsPerBlock() {
+		return mTripsPerBlock;
+	}
+
+	public int getBlockCount() {
+		return mComplete.length;
+	}
+
+	/**
+	 * @return Identifier of the first trip in the block
+	 */
+	public int getBlockStart(int block) {
+		return block * mTripsPerBlock;
+	}
+
+	/**
+	 * @return One more than the identifier of the last trip in the block
+	 */
+	public int getBlockEnd(int block) {
+		return Math.min(mNumTrips, (block + 1) * mTripsPerBlock);
+	}
+
+	public synchronized boolean isBlockComplete(int block) {
+		return mComplete[block];
+	}
+
+	/**
+	 * @return Number of trips in blocks that are already complete
+	 */
+	public synchronized int getCompletedTripCount() {
+		int trips = 0;
+		for(int b = 0; b < mComplete.length; b++) {
+			if(mComplete[b])
+				trips += getBlockEnd(b) - getBlockStart(b);
+		}
+		return trips;
+	}
+
+	/**
+	 * Flushes the partial cache file to disk and records the block as complete.
+	 * The block is only recorded once its rows are safely on disk
+	 * @param block The block whose rows have all been routed
+	 * @throws IOException If the manifest can't be written
+	 */
+	public synchronized void markBlockComplete(int block) throws IOException {
+		mCache.force();
+		mManifest.println(block);
+		syncManifest();
+		mComplete[block] = true;
+		mNumComplete++;
+	}
+
+	/**
+	 * Completes the build, moving the partial cache file to its final path. The manifest
+	 * is deleted. Use RouteCacheFile.map() to read the finished cache
+	 * @param cachePath Path of the finished cache file
+	 * @throws IOException If a block is incomplete, or the file can't be moved
+	 */
+	public synchronized void finish(String cachePath) throws IOException {
+		if(mNumComplete != mComplete.length)
+			throw new IOException("Only " + mNumComplete + " of " + mComplete.length + " blocks are complete");
+		mCache.force();
+		mManifest.close();
+		mCache = null;
+		if(!new File(mPartialPath).renameTo(new File(cachePath)))
+			throw new IOException("Unable to move " + mPartialPath + " to " + cachePath);
+		new File(mManifestPath).delete();
+	}
+
+	private void syncManifest() throws IOException {
+		mManifest.flush();
+		if(mManifest.checkError())
+			throw new IOException("Unable to write manifest at: " + mManifestPath);
+		mManifestStream.getFD().sync();
+	}
+
+	private void readManifest() throws IOException {
+		StringBuilder text = new StringBuilder();
+		FileReader reader = new FileReader(mManifestPath);
+		try {
+			char[] buffer = new char[8192];
+			int read;
+			while((read = reader.read(buffer)) != -1)
+				text.append(buffer, 0, read);
+		} finally {
+			reader.close();
+		}
+
+		// A crash mid-write can leave the last line torn, e.g. "1" of "12". Only lines
+		// ending in a newline were fully written
+		String[] lines = text.substring(0, text.lastIndexOf("\n") + 1).split("\n");
+		try {
+			if(lines[0].length() == 0 || Integer.parseInt(lines[0].trim()) != mTripsPerBlock)
+				throw new IOException("Manifest was written with a different block size");
+			for(int i = 1; i < lines.length; i++) {
+				int block = Integer.parseInt(lines[i].trim());
+				if(block >= 0 && block < mComplete.length && !mComplete[block]) {
+					mComplete[block] = true;
+					mNumComplete++;
+				}
+			}
+		} catch (NumberFormatException ex) {
+			throw new IOException("Manifest is malformed: " + mManifestPath);
+		}
+	}
+}
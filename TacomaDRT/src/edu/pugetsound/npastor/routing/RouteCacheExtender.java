@@ -0,0 +1,167 @@
+package edu.pugetsound.npastor.routing;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.pugetsound.npastor.TacomaDRTMain;
+import edu.pugetsound.npastor.routing.RouteCache.RouteCacheBuilder;
+import edu.pugetsound.npastor.routing.RouteCacheScheduler.ItemRouter;
+import edu.pugetsound.npastor.utils.Log;
+import edu.pugetsound.npastor.utils.Trip;
+
+/**
+ * Grows route caches without routing them again from scratch. A cache extended by K trips
+ * copies every route it already holds and only routes those to and from the new trips.
+ * Two caches of different trip sets are merged by routing just the pairs that cross
+ * between the sets.
+ *
+ * The trips of the second set follow those of the first: a trip with identifier k in the
+ * second set has identifier N + k in the merged cache, where N is the size of the first set.
+ * @author Nathan P
+ *
+ */
+public class RouteCacheExtender {
+
+	public static final String TAG = "RouteCacheExtender";
+
+	/**
+	 * Extends a cache with new trips
+	 * @param cache Cache of the first N trips
+	 * @param trips All N + K trips. Identifiers must run from 0 to N + K - 1, so the new trips are N to N + K - 1
+	 * @param backend Storage backend of the new cache, e.g. RouteCache.BACKEND_OFF_HEAP
+	 * @param numThreads Most threads of the shared executor to route on
+	 * @return A cache of all N + K trips, packed with the old cache's codec
+	 */
+	public static RouteCache extend(RouteCache cache, ArrayList<Trip> trips, int backend, int numThreads) {
+		int numOld = cache.getSize() / 2;
+		if(numOld > trips.size())
+			throw new IllegalArgumentException("Cache holds " + numOld + " trips, but only " + trips.size() + " were given");
+		Trip[] oldTrips = new Trip[numOld];
+		Trip[] newTrips = new Trip[trips.size() - numOld];
+		for(Trip t : trips) {
+			if(t.getIdentifier() < numOld)
+				oldTrips[t.getIdentifier()] = t;
+			else
+				newTrips[t.getIdentifier() - numOld] = t;
+		}
+		return merge(cache, oldTrips, null, newTrips, backend, numThreads);
+	}
+
+	/**
+	 * Merges the caches of two trip sets
+	 * @param cacheA Cache of the first set
+	 * @param tripsA Trips of the first set. Identifiers must run from 0 to tripsA.size() - 1
+	 * @param cacheB Cache of the second set. It must be packed with the same codec as the first
+	 * @param tripsB Trips of the second set. Identifiers must run from 0 to tripsB.size() - 1
+	 * @param backend Storage backend of the new cache, e.g. RouteCache.BACKEND_OFF_HEAP
+	 * @param numThreads Most threads of the shared executor to route on
+	 * @return A cache of both sets. Trip k of the second set is trip tripsA.size() + k
+	 */
+	public static RouteCache union(RouteCache cacheA, ArrayList<Trip> tripsA, RouteCache cacheB,
+			ArrayList<Trip> tripsB, int backend, int numThreads) {
+		if(cacheA.getCodec().getResolutionSecs() != cacheB.getCodec().getResolutionSecs()
+				|| cacheA.getCodec().getBytesPerCell() != cacheB.getCodec().getBytesPerCell())
+			throw new IllegalArgumentException("Caches are packed differently: " + cacheA.getCodec()
+					+ " and " + cacheB.getCodec());
+		return merge(cacheA, byId(tripsA), cacheB, byId(tripsB), backend, numThreads);
+	}
+
+	private static Trip[] byId(ArrayList<Trip> trips) {
+		Trip[] byId = new Trip[trips.size()];
+		for(Trip t : trips) {
+			byId[t.getIdentifier()] = t;
+		}
+		return byId;
+	}
+
+	/**
+	 * Builds the cache of set A followed by set B, copying each set's own routes from its
+	 * cache and routing the rest. With no cache for set B, all of its routes are routed
+	 */
+	private static RouteCache merge(RouteCache cacheA, Trip[] tripsA, RouteCache cacheB, Trip[] tripsB,
+			int backend, int numThreads) {
+		int numTrips = tripsA.length + tripsB.length;
+		Trip[] trips = new Trip[numTrips];
+		System.arraycopy(tripsA, 0, trips, 0, tripsA.length);
+		System.arraycopy(tripsB, 0, trips, tripsA.length, tripsB.length);
+
+		long startTime = System.currentTimeMillis();
+		RouteCacheBuilder builder = new RouteCacheBuilder(numTrips, backend, cacheA.getCodec());
+		AtomicLong routed = new AtomicLong();
+		EndpointSnapCache snaps = new EndpointSnapCache(Routefinder.getInstance(), trips);
+		RouteCacheScheduler scheduler = new RouteCacheScheduler(new MergeTask(builder, snaps, tripsA.length, cacheA, cacheB), 
+				numTrips, RouteCacheScheduler.DEFAULT_CHUNK_TRIPS, routed);
+		CountDownLatch latch = scheduler.start(TacomaDRTMain.getExecutor(), numThreads);
+		try {
+			latch.await();
+		} catch (InterruptedException ex) {
+			Log.e(TAG, ex.getMessage());
+			ex.printStackTrace();
+			scheduler.cancel();
+		}
+		if(scheduler.isCancelled()) {
+			Log.e(TAG, "Cache merge stopped before it was complete" 
+					+ (scheduler.getError() != null ? ". " + scheduler.getError().getMessage() : ""));
+			System.exit(1);
+		}
+		Log.iln(TAG, "Merged caches of " + tripsA.length + " and " + tripsB.length + " trips, routing "
+				+ routed.get() + " new routes in " + (System.currentTimeMillis() - startTime) / 1000 + " seconds");
+		return builder.build();
+	}
+
+	/**
+	 * Fills both of a trip's rows in the merged cache. The trips are the items of a
+	 * RouteCacheScheduler build
+	 */
+	private static class MergeTask implements ItemRouter {
+
+		private RouteCacheBuilder mBuilder;
+		private EndpointSnapCache mSnaps;
+		private int mNumA;
+		private RouteCache mCacheA;
+		private RouteCache mCacheB;
+
+		MergeTask(RouteCacheBuilder builder, EndpointSnapCache snaps, int numA, RouteCache cacheA, RouteCache cacheB) {
+			mBuilder = builder;
+			mSnaps = snaps;
+			mNumA = numA;
+			mCacheA = cacheA;
+			mCacheB = cacheB;
+		}
+
+		/**
+		 * @param t1 Identifier of the trip in the merged cache
+		 * @return Number of routes calculated rather than copied
+		 */
+		@Override
+		public int routeItem(int t1) {
+			int numTrips = mSnaps.getSize() / 2;
+			int routed = 0;
+			boolean t1InA = t1 < mNumA;
+			for(int t2 = 0; t2 < numTrips; t2++) {
+				boolean t2InA = t2 < mNumA;
+				for(int cell = 0; cell < 4; cell++) {
+					boolean fromOrigin = cell < 2;
+					boolean toOrigin = cell % 2 == 0;
+					int i1 = RouteCache.hash(t1, fromOrigin);
+					int i2 = RouteCache.hash(t2, toOrigin);
+					int secs;
+					if(i1 == i2) {
+						secs = 0;
+					} else if(t1InA && t2InA) {
+						secs = mCacheA.getDirect(i1, i2);
+					} else if(!t1InA && !t2InA && mCacheB != null) {
+						secs = mCacheB.getDirect(RouteCache.hash(t1 - mNumA, fromOrigin),
+								RouteCache.hash(t2 - mNumA, toOrigin));
+					} else {
+						secs = mSnaps.getTravelTimeSecs(i1, i2);
+						routed++;
+					}
+					mBuilder.putDirect(i1, i2, secs);
+				}
+			}
+			return routed;
+		}
+	}
+}
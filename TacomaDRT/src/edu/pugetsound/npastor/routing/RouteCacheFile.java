@@ -0,0 +1,349 @@
+package edu.pugetsound.npastor.routing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+
+import edu.pugetsound.npastor.utils.Constants;
+import edu.pugetsound.npastor.utils.Log;
+import edu.pugetsound.npastor.utils.Trip;
+
+/**
+ * Reads and writes the binary route cache file. The file is a fixed size header
+ * followed by the raw matrix in row-major order, each cell packed by the cache's
+ * TravelTimeCodec, so it can be memory-mapped and read directly without a parse step.
+ *
+ *   Header layout (big-endian):
+ *   int  magic           "TDRC"
+ *   int  version         FORMAT_VERSION
+ *   int  numTrips        Matrix is (2 * numTrips)^2 cells
+ *   int  resolutionSecs  Seconds per stored time unit
+ *   int  bytesPerCell
+ *   int  reserved
+ *   long graphFingerprint See Routefinder.getGraphFingerprint()
+ *
+ * @author Nathan P
+ *
+ */
+public class RouteCacheFile {
+
+	public static final String TAG = "RouteCacheFile";
+
+	private static final int MAGIC = 0x54445243; // "TDRC"
+	private static final int FORMAT_VERSION = 1;
+	static final int HEADER_BYTES = 32;
+
+	private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Converts a legacy route_cache.csv in the specified simulation directory to
+	 * the binary format, stamped with the current graph's fingerprint
+	 * @param args args[0] is the simulation directory
+	 */
+	public static void main(String[] args) {
+		String csvPath = args[0] + Constants.ROUTE_CACHE_CSV;
+		String binPath = args[0] + Constants.ROUTE_CACHE_BIN;
+		try {
+			convertCsv(csvPath, binPath, Routefinder.getGraphFingerprint(), Runtime.getRuntime().availableProcessors());
+		} catch (IOException ex) {
+			Log.e(TAG, "Unable to convert cache file at: " + csvPath + "\n  " + ex.getMessage());
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Writes the cache to a binary cache file
+	 * @param cache The cache to write
+	 * @param path Destination file
+	 * @param fingerprint Fingerprint of the graph the cache was routed on
+	 * @throws IOException If the file can't be written
+	 */
+	public static void write(RouteCache cache, String path, long fingerprint) throws IOException {
+		int size = cache.getSize();
+		TravelTimeCodec codec = cache.getCodec();
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(path), WRITE_BUFFER_SIZE));
+		try {
+			writeHeader(out, size / 2, codec, fingerprint);
+			boolean wide = codec.getBytesPerCell() == 2;
+			byte[] row = new byte[size * codec.getBytesPerCell()];
+			for(int i = 0; i < size; i++) {
+				for(int j = 0; j < size; j++) {
+					int ticks = codec.encode(cache.getDirect(i, j));
+					if(wide) {
+						row[2 * j] = (byte) (ticks >>> 8);
+						row[2 * j + 1] = (byte) ticks;
+					} else {
+						row[j] = (byte) ticks;
+					}
+				}
+				out.write(row);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Memory-maps a binary cache file. Pages are loaded by the OS as cells are read,
+	 * and the mapping stays valid after this method returns
+	 * @param path The cache file
+	 * @param numTrips Expected number of trips
+	 * @param fingerprint Fingerprint of the graph in use
+	 * @return A read-only route cache backed by the file
+	 * @throws IOException If the file can't be read, or does not match the trips or graph
+	 */
+	public static RouteCache map(String path, int numTrips, long fingerprint) throws IOException {
+		return map(path, numTrips, fingerprint, false);
+	}
+
+	/**
+	 * Memory-maps a binary cache file
+	 * @param writable True to map the file read-write, so puts go straight to the file
+	 */
+	static OffHeapRouteCache map(String path, int numTrips, long fingerprint, boolean writable) throws IOException {
+		TravelTimeCodec codec = readHeader(path, numTrips, fingerprint);
+
+		RandomAccessFile file = new RandomAccessFile(path, writable ? "rw" : "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long totalBytes = ((long) numTrips * 2 * numTrips * 2) << codec.getCellShift();
+			if(channel.size() != HEADER_BYTES + totalBytes)
+				throw new IOException("Cache file is truncated. Expected " + (HEADER_BYTES + totalBytes)
+						+ " bytes, found " + channel.size());
+
+			FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+			ByteBuffer[] segments = new ByteBuffer[OffHeapRouteCache.numSegments(totalBytes)];
+			for(int i = 0; i < segments.length; i++) {
+				long offset = HEADER_BYTES + (long) i * OffHeapRouteCache.SEGMENT_BYTES;
+				segments[i] = channel.map(mode, offset, OffHeapRouteCache.segmentLength(totalBytes, i));
+			}
+			return new OffHeapRouteCache(numTrips, codec, segments);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Creates a cache file of all zero travel times, and maps it read-write so the
+	 * cache can be built in place
+	 * @param path Destination file
+	 * @param numTrips Number of trips in the cache
+	 * @param codec Packing of each cell
+	 * @param fingerprint Fingerprint of the graph the cache will be routed on
+	 * @return A writable route cache backed by the file
+	 * @throws IOException If the file can't be created
+	 */
+	static OffHeapRouteCache create(String path, int numTrips, TravelTimeCodec codec, long fingerprint) throws IOException {
+		long totalBytes = ((long) numTrips * 2 * numTrips * 2) << codec.getCellShift();
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		try {
+			file.setLength(0);
+			writeHeader(file, numTrips, codec, fingerprint);
+			file.setLength(HEADER_BYTES + totalBytes);
+		} finally {
+			file.close();
+		}
+		return map(path, numTrips, fingerprint, true);
+	}
+
+	/**
+	 * Converts a legacy comma separated cache file to the binary format. The trip count
+	 * is taken from the width of the first row. Legacy cells are whole minutes, so they
+	 * are written with TravelTimeCodec.MINUTES_8. The csv is parsed in parallel, see CsvCacheParser
+	 * @param csvPath The legacy cache file
+	 * @param binPath Destination of the binary cache file
+	 * @param fingerprint Fingerprint to stamp in the header. Legacy files don't record
+	 *                    their graph, so the caller vouches for it
+	 * @param numThreads Number of parsing threads
+	 * @return Number of trips in the cache
+	 * @throws IOException If either file can't be read or written, or the csv is malformed
+	 */
+	public static int convertCsv(String csvPath, String binPath, long fingerprint, int numThreads) throws IOException {
+		Log.iln(TAG, "Converting cache file at " + csvPath + " to " + binPath);
+		RandomAccessFile csv = new RandomAccessFile(csvPath, "r");
+		try {
+			CsvCacheParser parser = new CsvCacheParser(csv.getChannel(), numThreads);
+			int numTrips = parser.getTripCount();
+			OffHeapRouteCache cache = create(binPath, numTrips, TravelTimeCodec.MINUTES_8, fingerprint);
+			parser.parseInto(cache);
+			cache.force();
+			return numTrips;
+		} finally {
+			csv.close();
+		}
+	}
+
+	static void writeHeader(DataOutput out, int numTrips, TravelTimeCodec codec,
+			long fingerprint) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeInt(numTrips);
+		out.writeInt(codec.getResolutionSecs());
+		out.writeInt(codec.getBytesPerCell());
+		out.writeInt(0);
+		out.writeLong(fingerprint);
+	}
+
+	/**
+	 * Reads the number of trips in a cache file. Binary, compressed and tiled cache
+	 * files all begin with their magic, version and trip count
+	 * @param path The cache file
+	 * @return Number of trips in the cache
+	 * @throws IOException If the file can't be read
+	 */
+	public static int readTripCount(String path) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(path));
+		try {
+			in.readInt();
+			in.readInt();
+			return in.readInt();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes the endpoints of the trips a cache was built for: the trip count, then each trip's
+	 * origin and destination coordinates in identifier order. A re-run that reuses the cache
+	 * checks them with tripsMatch()
+	 * @param trips The cache's trips. Identifiers must run from 0 to trips.size() - 1
+	 * @param path The endpoints file
+	 * @throws IOException If the file can't be written
+	 */
+	public static void writeTrips(ArrayList<Trip> trips, String path) throws IOException {
+		Trip[] byId = new Trip[trips.size()];
+		for(Trip t : trips)
+			byId[t.getIdentifier()] = t;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+		try {
+			out.writeInt(byId.length);
+			for(Trip t : byId) {
+				out.writeDouble(t.getOriginPoint().getX());
+				out.writeDouble(t.getOriginPoint().getY());
+				out.writeDouble(t.getDestinationPoint().getX());
+				out.writeDouble(t.getDestinationPoint().getY());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Checks that a cache was built for the first trips of a trip list, by comparing the
+	 * endpoints written by writeTrips(). Trip files store coordinates at full precision,
+	 * so the endpoints of an unchanged trip compare exactly
+	 * @param path The cache's endpoints file
+	 * @param trips The current trips. Identifiers must run from 0 to trips.size() - 1
+	 * @param numTrips Number of trips the cache holds
+	 * @return True if the file holds numTrips trips, and each has the endpoints of the current trip with its identifier
+	 * @throws IOException If the file can't be read
+	 */
+	public static boolean tripsMatch(String path, ArrayList<Trip> trips, int numTrips) throws IOException {
+		if(numTrips > trips.size())
+			return false;
+		Trip[] byId = new Trip[trips.size()];
+		for(Trip t : trips)
+			byId[t.getIdentifier()] = t;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+		try {
+			if(in.readInt() != numTrips)
+				return false;
+			for(int id = 0; id < numTrips; id++) {
+				Trip t = byId[id];
+				if(in.readDouble() != t.getOriginPoint().getX() || in.readDouble() != t.getOriginPoint().getY()
+						|| in.readDouble() != t.getDestinationPoint().getX() || in.readDouble() != t.getDestinationPoint().getY())
+					return false;
+			}
+			return true;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Makes a cache file available at a second path without re-encoding it. The file is
+	 * hard linked where the file system allows it, which takes no time or space. Otherwise
+	 * its bytes are copied by the kernel, without passing through the heap. Works for any
+	 * cache file format.
+	 * @param sourcePath Existing cache file
+	 * @param destPath New path. Must not exist
+	 * @return True if the file was linked, false if it was copied
+	 * @throws IOException If the file can be neither linked nor copied
+	 */
+	public static boolean link(String sourcePath, String destPath) throws IOException {
+		try {
+			Files.createLink(Paths.get(destPath), Paths.get(sourcePath));
+			return true;
+		} catch (IOException ex) {
+			// Most likely the directories are on different file systems
+			Log.d(TAG, "Unable to link " + destPath + ", copying. " + ex.getMessage());
+		} catch (UnsupportedOperationException ex) {
+			Log.d(TAG, "File system doesn't support links, copying " + destPath);
+		}
+
+		FileInputStream in = new FileInputStream(sourcePath);
+		try {
+			FileOutputStream out = new FileOutputStream(destPath);
+			try {
+				FileChannel src = in.getChannel();
+				FileChannel dest = out.getChannel();
+				long size = src.size();
+				long position = 0;
+				// transferTo may move fewer bytes than asked for
+				while(position < size) {
+					position += src.transferTo(position, size - position, dest);
+				}
+				return false;
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads and validates the header of a binary cache file
+	 * @return The codec the file's cells are packed with
+	 */
+	private static TravelTimeCodec readHeader(String path, int numTrips, long fingerprint) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(path));
+		try {
+			if(in.readInt() != MAGIC)
+				throw new IOException("Not a route cache file: " + path);
+			int version = in.readInt();
+			if(version != FORMAT_VERSION)
+				throw new IOException("Unsupported cache file version " + version + " at: " + path);
+			int fileTrips = in.readInt();
+			if(fileTrips != numTrips)
+				throw new IOException("Cache file holds " + fileTrips + " trips, expected " + numTrips);
+			int resolution = in.readInt();
+			int cellBytes = in.readInt();
+			TravelTimeCodec codec;
+			try {
+				codec = new TravelTimeCodec(resolution, cellBytes);
+			} catch (IllegalArgumentException ex) {
+				throw new IOException("Unsupported cache resolution at: " + path + "\n  " + ex.getMessage());
+			}
+			in.readInt();
+			long fileFingerprint = in.readLong();
+			if(fileFingerprint != fingerprint)
+				throw new IOException("Cache file was built on a different graph: " + path);
+			return codec;
+		} finally {
+			in.close();
+		}
+	}
+}
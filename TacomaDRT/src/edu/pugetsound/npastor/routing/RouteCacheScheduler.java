@@ -0,0 +1,271 @@
+package edu.pugetsound.npastor.routing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.pugetsound.npastor.routing.RouteCache.RouteCacheBuilder;
+import edu.pugetsound.npastor.utils.Log;
+import edu.pugetsound.npastor.utils.Trip;
+
+/**
+ * Schedules a route cache build across RoutefinderTask workers. Trips are handed out in
+ * small chunks from a shared counter, so a worker that finishes its chunk early simply
+ * claims the next one, and no worker idles while another works through a long range.
+ *
+ * Builds that aren't split by trip, e.g. by sparse cache row or by graph node, supply an
+ * ItemRouter, and are scheduled the same way over its items.
+ *
+ * Workers run on an executor supplied by the caller, so the build shares its threads with
+ * whatever else the executor runs, and at most the requested number of workers run at once.
+ * A build can be cancelled: workers stop after the trip they are routing.
+ *
+ * A checkpointed build is still checkpointed by the block. Chunks are carved out of the
+ * blocks, and a block is marked complete once all of its chunks are routed.
+ * @author Nathan P
+ *
+ */
+public class RouteCacheScheduler {
+
+	public static final String TAG = "RouteCacheScheduler";
+
+	/** Trips per chunk. Small enough to keep every worker busy until the end of the build */
+	public static final int DEFAULT_CHUNK_TRIPS = 4;
+
+	/**
+	 * Routes one item of a build that isn't split by trip. Called by every worker at once,
+	 * so it must be thread safe
+	 */
+	public interface ItemRouter {
+		/**
+		 * @param item The item to route
+		 * @return Number of routes calculated
+		 */
+		int routeItem(int item);
+	}
+
+	private RouteCacheBuilder mBuilder; // Null if the build isn't split by trip
+	private ItemRouter mItemRouter; // Null if the build is split by trip
+	private ArrayList<Trip> mTrips;
+	private Trip[] mTripsById;
+	private RouteCacheCheckpoint mCheckpoint; // Null if the build isn't checkpointed
+	private EndpointSnapCache mSnaps; // Shared by every worker
+
+	private int mStartTrip; // Trips [mStartTrip, mEndTrip) are routed
+	private int mEndTrip;
+	private int mTripsPerBlock; // Blocks and chunks are counted from mStartTrip
+	private int mChunkTrips;
+	private int mChunksPerBlock;
+	private int mNumChunks;
+	private AtomicInteger mNextChunk;
+	private AtomicIntegerArray mChunksLeft; // Unrouted chunks of each block
+
+	private AtomicLong mProgress;
+	private volatile boolean mCancelled;
+	private volatile Throwable mError; // First error a worker threw
+	private CountDownLatch mDone;
+
+	/**
+	 * Schedules a build of every row of the cache
+	 * @param builder Builder of the cache to fill
+	 * @param trips All trips in the simulation. Identifiers must run from 0 to trips.size() - 1
+	 * @param chunkTrips Trips per chunk
+	 * @param progress Number of routes calculated so far
+	 */
+	public RouteCacheScheduler(RouteCacheBuilder builder, ArrayList<Trip> trips, int chunkTrips, AtomicLong progress) {
+		this(builder, trips, 0, trips.size(), chunkTrips, progress);
+	}
+
+	/**
+	 * Schedules a build of the rows of a range of trips, e.g. a shard of the cache
+	 * @param builder Builder of the cache to fill
+	 * @param trips All trips in the simulation. Identifiers must run from 0 to trips.size() - 1
+	 * @param startTrip Identifier of the first trip to route
+	 * @param endTrip One more than the identifier of the last trip to route
+	 * @param chunkTrips Trips per chunk
+	 * @param progress Number of routes calculated so far
+	 */
+	public RouteCacheScheduler(RouteCacheBuilder builder, ArrayList<Trip> trips, int startTrip, int endTrip,
+			int chunkTrips, AtomicLong progress) {
+		this(builder, trips, null, startTrip, endTrip, chunkTrips, chunkTrips, null, progress);
+	}
+
+	/**
+	 * Schedules a build that isn't split by trip
+	 * @param router Routes each item
+	 * @param numItems Items [0, numItems) are routed
+	 * @param chunkItems Items per chunk
+	 * @param progress Number of routes calculated so far
+	 */
+	public RouteCacheScheduler(ItemRouter router, int numItems, int chunkItems, AtomicLong progress) {
+		this(null, null, router, 0, numItems, chunkItems, chunkItems, null, progress);
+	}
+
+	/**
+	 * Schedules the blocks of a checkpointed build that aren't complete yet
+	 * @param checkpoint The checkpointed build
+	 * @param trips All trips in the simulation. Identifiers must run from 0 to trips.size() - 1
+	 * @param chunkTrips Trips per chunk
+	 * @param progress Number of routes calculated so far
+	 */
+	public RouteCacheScheduler(RouteCacheCheckpoint checkpoint, ArrayList<Trip> trips, int chunkTrips, AtomicLong progress) {
+		this(checkpoint.getBuilder(), trips, null, 0, trips.size(), checkpoint.getTripsPerBlock(), chunkTrips, 
+				checkpoint, progress);
+	}
+
+	private RouteCacheScheduler(RouteCacheBuilder builder, ArrayList<Trip> trips, ItemRouter router, int startTrip, 
+			int endTrip, int tripsPerBlock, int chunkTrips, RouteCacheCheckpoint checkpoint, AtomicLong progress) {
+		mBuilder = builder;
+		mTrips = trips;
+		mItemRouter = router;
+		mCheckpoint = checkpoint;
+		mProgress = progress;
+		if(trips != null) {
+			mTripsById = new Trip[trips.size()];
+			for(Trip t : trips) {
+				mTripsById[t.getIdentifier()] = t;
+			}
+			mSnaps = new EndpointSnapCache(Routefinder.getInstance(), mTripsById);
+		}
+
+		mStartTrip = startTrip;
+		mEndTrip = endTrip;
+		mTripsPerBlock = tripsPerBlock;
+		mChunkTrips = Math.min(chunkTrips, tripsPerBlock);
+		mChunksPerBlock = (tripsPerBlock + mChunkTrips - 1) / mChunkTrips;
+		int numBlocks = (endTrip - startTrip + tripsPerBlock - 1) / tripsPerBlock;
+		mNumChunks = numBlocks * mChunksPerBlock;
+		mNextChunk = new AtomicInteger();
+		mChunksLeft = new AtomicIntegerArray(numBlocks);
+		for(int block = 0; block < numBlocks; block++) {
+			mChunksLeft.set(block, mChunksPerBlock);
+		}
+	}
+
+	/**
+	 * Starts the build
+	 * @param executor Executor to run the workers on
+	 * @param parallelism Number of workers, the most threads the build will use at once
+	 * @return Counted down as each worker finishes. Reaches zero when the build is complete or cancelled
+	 */
+	public synchronized CountDownLatch start(Executor executor, int parallelism) {
+		if(mDone != null)
+			throw new IllegalStateException("Build already started");
+		mDone = new CountDownLatch(parallelism);
+		for(int i = 0; i < parallelism; i++) {
+			executor.execute(new RoutefinderTask(this));
+		}
+		return mDone;
+	}
+
+	/**
+	 * Stops the build. Workers finish the trip they are routing, then exit. Rows of
+	 * unrouted trips are left as they are
+	 */
+	public void cancel() {
+		mCancelled = true;
+	}
+
+	/**
+	 * @return True if the build was cancelled, or stopped by an error
+	 */
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	/**
+	 * @return The error that stopped the build, or null
+	 */
+	public Throwable getError() {
+		return mError;
+	}
+
+	ItemRouter getItemRouter() {
+		return mItemRouter;
+	}
+
+	RouteCacheBuilder getBuilder() {
+		return mBuilder;
+	}
+
+	ArrayList<Trip> getTrips() {
+		return mTrips;
+	}
+
+	Trip getTrip(int tripId) {
+		return mTripsById[tripId];
+	}
+
+	EndpointSnapCache getSnapCache() {
+		return mSnaps;
+	}
+
+	AtomicLong getProgress() {
+		return mProgress;
+	}
+
+	/**
+	 * Claims the next chunk to route, skipping chunks of blocks completed by an earlier run
+	 * @return The chunk, or -1 if none are left or the build was cancelled
+	 */
+	int claimChunk() {
+		int chunk;
+		while(!mCancelled && (chunk = mNextChunk.getAndIncrement()) < mNumChunks) {
+			if(mCheckpoint != null && mCheckpoint.isBlockComplete(chunk / mChunksPerBlock))
+				continue;
+			return chunk;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Identifier of the first trip, or the first item, in the chunk
+	 */
+	int getChunkStart(int chunk) {
+		return Math.min(mEndTrip, mStartTrip + (chunk / mChunksPerBlock) * mTripsPerBlock 
+				+ (chunk % mChunksPerBlock) * mChunkTrips);
+	}
+
+	/**
+	 * @return One more than the identifier of the last trip, or the last item, in the chunk
+	 */
+	int getChunkEnd(int chunk) {
+		int blockEnd = Math.min(mEndTrip, mStartTrip + (chunk / mChunksPerBlock + 1) * mTripsPerBlock);
+		return Math.min(blockEnd, getChunkStart(chunk) + mChunkTrips);
+	}
+
+	/**
+	 * Records that every trip in the chunk is routed, checkpointing its block if it was the last
+	 */
+	void onChunkComplete(int chunk) {
+		int block = chunk / mChunksPerBlock;
+		if(mChunksLeft.decrementAndGet(block) > 0 || mCheckpoint == null)
+			return;
+		try {
+			mCheckpoint.markBlockComplete(block);
+		} catch (IOException ex) {
+			// The block is routed all the same, it will just be routed again on a resume
+			Log.e(TAG, "Unable to checkpoint block " + block + ". " + ex.getMessage());
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stops the build after a worker failed
+	 */
+	void onWorkerFailed(Throwable error) {
+		synchronized(this) {
+			if(mError == null)
+				mError = error;
+		}
+		cancel();
+	}
+
+	void onWorkerFinished() {
+		mDone.countDown();
+	}
+}
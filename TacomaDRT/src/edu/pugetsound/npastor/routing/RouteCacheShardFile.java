@@ -0,0 +1,310 @@
+package edu.pugetsound.npastor.routing;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.pugetsound.npastor.TacomaDRTMain;
+import edu.pugetsound.npastor.riderGen.TripGenerator;
+import edu.pugetsound.npastor.routing.RouteCache.RouteCacheBuilder;
+import edu.pugetsound.npastor.utils.Constants;
+import edu.pugetsound.npastor.utils.Log;
+import edu.pugetsound.npastor.utils.Trip;
+
+/**
+ * Splits a route cache build across processes or machines. Each worker routes the rows of
+ * a range of trips into a shard file, and once every trip is covered the shards are merged
+ * into one binary cache file. Workers share nothing but the simulation directory, so any
+ * number of JVMs, local or on other machines sharing the storage, can split a build.
+ *
+ * A shard's rows are exactly the bytes the binary cache file holds for those rows, so
+ * merging is a header followed by each shard's rows, copied in order.
+ *
+ *   Header layout (big-endian):
+ *   int  magic           "TDRS"
+ *   int  version         FORMAT_VERSION
+ *   int  numTrips        Trips in the whole cache
+ *   int  startTrip       First trip whose rows the shard holds
+ *   int  endTrip         One more than the last trip whose rows the shard holds
+ *   int  resolutionSecs  Seconds per stored time unit
+ *   int  bytesPerCell
+ *   int  reserved
+ *   long graphFingerprint See Routefinder.getGraphFingerprint()
+ *
+ * @author Nathan P
+ *
+ */
+public class RouteCacheShardFile {
+
+	public static final String TAG = "RouteCacheShardFile";
+
+	private static final int MAGIC = 0x54445253; // "TDRS"
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_BYTES = 40;
+
+	private static final String EXTENSION = ".tds";
+	private static final String PARTIAL_EXTENSION = ".partial"; // Shards being built, which merges skip
+
+	/**
+	 * Builds or merges shards of a simulation's route cache. Shards are built from the
+	 * simulation's trip file, and the merged cache is written to the simulation's cache file
+	 * @param args "build simDir startTrip endTrip" routes trips [startTrip, endTrip) into a shard.
+	 *             "merge simDir" merges the simulation's shards
+	 */
+	public static void main(String[] args) {
+		if(args.length == 4 && args[0].equals("build")) {
+			buildShard(args[1], Integer.valueOf(args[2]), Integer.valueOf(args[3]));
+		} else if(args.length == 2 && args[0].equals("merge")) {
+			try {
+				merge(args[1], args[1] + Constants.ROUTE_CACHE_BIN, Routefinder.getGraphFingerprint());
+			} catch (IOException ex) {
+				Log.e(TAG, "Unable to merge cache shards in: " + args[1] + "\n  " + ex.getMessage());
+				ex.printStackTrace();
+				System.exit(1);
+			}
+		} else {
+			Log.e(TAG, "Usage: RouteCacheShardFile build simDir startTrip endTrip | merge simDir");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Routes a shard of a simulation's cache, using every processor of this machine
+	 */
+	private static void buildShard(String simDir, int startTrip, int endTrip) {
+		long startTime = System.currentTimeMillis();
+		TacomaDRTMain.numThreads = Runtime.getRuntime().availableProcessors();
+		ArrayList<Trip> trips = new TripGenerator(true).generateTripsFromFile(simDir + Constants.TRIPS_VEHICLES_TXT, false);
+		if(startTrip < 0 || startTrip >= endTrip || endTrip > trips.size()) {
+			Log.e(TAG, "Invalid trip range [" + startTrip + ", " + endTrip + ") of " + trips.size() + " trips");
+			System.exit(1);
+		}
+
+		String path = getPath(simDir, startTrip, endTrip);
+		String partialPath = path + PARTIAL_EXTENSION;
+		Log.iln(TAG, "Routing trips [" + startTrip + ", " + endTrip + ") of " + trips.size() + " into " + path);
+		try {
+			OffHeapRouteCache shard = create(partialPath, trips.size(), startTrip, endTrip,
+					TravelTimeCodec.DEFAULT, Routefinder.getGraphFingerprint());
+			AtomicLong progress = new AtomicLong();
+			RouteCacheScheduler scheduler = new RouteCacheScheduler(new RouteCacheBuilder(shard), trips,
+					startTrip, endTrip, RouteCacheScheduler.DEFAULT_CHUNK_TRIPS, progress);
+			CountDownLatch latch = scheduler.start(TacomaDRTMain.getExecutor(), TacomaDRTMain.numThreads);
+			long totalRoutes = (long) (endTrip - startTrip) * 2 * trips.size() * 2;
+			while(!latch.await(60, TimeUnit.SECONDS)) {
+				Log.iln(TAG, "  " + (int) ((double) progress.get() / totalRoutes * 100) + "% routed");
+			}
+			if(scheduler.isCancelled())
+				throw new IOException("Routing stopped before the shard was complete");
+			shard.force();
+			if(shard.getCodec().getClampedCount() > 0)
+				Log.e(TAG, shard.getCodec().getClampedCount() + " travel times were longer than the " 
+						+ shard.getCodec().getMaxSecs() + " seconds a cache cell holds, and were shortened to it");
+
+			// Only complete shards get their final name, so a merge never picks up a partial one
+			if(!new File(partialPath).renameTo(new File(path)))
+				throw new IOException("Unable to rename " + partialPath);
+		} catch (IOException ex) {
+			Log.e(TAG, "Unable to build cache shard at: " + path + "\n  " + ex.getMessage());
+			ex.printStackTrace();
+			System.exit(1);
+		} catch (InterruptedException ex) {
+			Log.e(TAG, ex.getMessage());
+			ex.printStackTrace();
+			System.exit(1);
+		}
+		TacomaDRTMain.printTime("Cache shard routed in ", System.currentTimeMillis(), startTime);
+	}
+
+	/**
+	 * @param simDir Simulation directory
+	 * @param startTrip First trip of the shard
+	 * @param endTrip One more than the last trip of the shard
+	 * @return Path of the shard file
+	 */
+	public static String getPath(String simDir, int startTrip, int endTrip) {
+		return simDir + Constants.ROUTE_CACHE_SHARD + startTrip + "_" + endTrip + EXTENSION;
+	}
+
+	/**
+	 * @param simDir Simulation directory
+	 * @return The simulation's complete shard files, in no particular order
+	 */
+	public static File[] listShards(String simDir) {
+		final String prefix = Constants.ROUTE_CACHE_SHARD.substring(1);
+		File[] shards = new File(simDir).listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(prefix) && name.endsWith(EXTENSION);
+			}
+		});
+		return shards == null ? new File[0] : shards;
+	}
+
+	/**
+	 * Creates a shard file of all zero travel times, and maps its rows read-write so they
+	 * can be routed in place
+	 * @param path Destination file
+	 * @param numTrips Number of trips in the whole cache
+	 * @param startTrip First trip whose rows the shard holds
+	 * @param endTrip One more than the last trip whose rows the shard holds
+	 * @param codec Packing of each cell
+	 * @param fingerprint Fingerprint of the graph the shard will be routed on
+	 * @return A writable route cache of the shard's rows. Other rows can't be read or written
+	 * @throws IOException If the file can't be created
+	 */
+	static OffHeapRouteCache create(String path, int numTrips, int startTrip, int endTrip,
+			TravelTimeCodec codec, long fingerprint) throws IOException {
+		long totalBytes = ((long) (endTrip - startTrip) * 2 * numTrips * 2) << codec.getCellShift();
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		try {
+			file.setLength(0);
+			file.writeInt(MAGIC);
+			file.writeInt(FORMAT_VERSION);
+			file.writeInt(numTrips);
+			file.writeInt(startTrip);
+			file.writeInt(endTrip);
+			file.writeInt(codec.getResolutionSecs());
+			file.writeInt(codec.getBytesPerCell());
+			file.writeInt(0);
+			file.writeLong(fingerprint);
+			file.setLength(HEADER_BYTES + totalBytes);
+
+			FileChannel channel = file.getChannel();
+			ByteBuffer[] segments = new ByteBuffer[OffHeapRouteCache.numSegments(totalBytes)];
+			for(int i = 0; i < segments.length; i++) {
+				long offset = HEADER_BYTES + (long) i * OffHeapRouteCache.SEGMENT_BYTES;
+				segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, offset,
+						OffHeapRouteCache.segmentLength(totalBytes, i));
+			}
+			return new OffHeapRouteCache(numTrips, codec, segments, startTrip * 2);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Merges a simulation's shards into a binary cache file. The shards must cover every
+	 * trip exactly once, and have been routed on the same graph with the same codec
+	 * @param simDir Simulation directory holding the shards
+	 * @param binPath Destination of the binary cache file
+	 * @param fingerprint Fingerprint of the graph in use
+	 * @return Number of trips in the cache
+	 * @throws IOException If the shards don't fit together, or the cache file can't be written
+	 */
+	public static int merge(String simDir, String binPath, long fingerprint) throws IOException {
+		File[] files = listShards(simDir);
+		if(files.length == 0)
+			throw new IOException("No cache shards found in: " + simDir);
+		ShardHeader[] shards = new ShardHeader[files.length];
+		for(int i = 0; i < files.length; i++) {
+			shards[i] = readHeader(files[i]);
+		}
+		Arrays.sort(shards, new Comparator<ShardHeader>() {
+			@Override
+			public int compare(ShardHeader s1, ShardHeader s2) {
+				return s1.startTrip - s2.startTrip;
+			}
+		});
+
+		// The shards must tile the trips with no gaps or overlaps
+		ShardHeader first = shards[0];
+		int nextTrip = 0;
+		for(ShardHeader shard : shards) {
+			if(shard.fingerprint != fingerprint)
+				throw new IOException("Shard was built on a different graph: " + shard.file);
+			if(shard.numTrips != first.numTrips || shard.resolutionSecs != first.resolutionSecs
+					|| shard.bytesPerCell != first.bytesPerCell)
+				throw new IOException("Shard doesn't match the others: " + shard.file);
+			if(shard.startTrip != nextTrip)
+				throw new IOException("Shards don't cover trips [" + nextTrip + ", " + shard.startTrip + ")"
+						+ (shard.startTrip < nextTrip ? ", they overlap" : ""));
+			nextTrip = shard.endTrip;
+		}
+		if(nextTrip != first.numTrips)
+			throw new IOException("Shards don't cover trips [" + nextTrip + ", " + first.numTrips + ")");
+
+		TravelTimeCodec codec;
+		try {
+			codec = new TravelTimeCodec(first.resolutionSecs, first.bytesPerCell);
+		} catch (IllegalArgumentException ex) {
+			throw new IOException("Unsupported cache resolution in shards\n  " + ex.getMessage());
+		}
+
+		Log.iln(TAG, "Merging " + shards.length + " cache shards of " + first.numTrips + " trips into " + binPath);
+		FileOutputStream out = new FileOutputStream(binPath);
+		try {
+			RouteCacheFile.writeHeader(new DataOutputStream(out), first.numTrips, codec, fingerprint);
+			FileChannel dest = out.getChannel();
+			for(ShardHeader shard : shards) {
+				long rowBytes = ((long) (shard.endTrip - shard.startTrip) * 2 * shard.numTrips * 2) << codec.getCellShift();
+				FileInputStream in = new FileInputStream(shard.file);
+				try {
+					FileChannel src = in.getChannel();
+					if(src.size() != HEADER_BYTES + rowBytes)
+						throw new IOException("Shard is truncated: " + shard.file);
+					long position = HEADER_BYTES;
+					// transferTo may move fewer bytes than asked for
+					while(position < src.size()) {
+						position += src.transferTo(position, src.size() - position, dest);
+					}
+				} finally {
+					in.close();
+				}
+			}
+		} catch (IOException ex) {
+			out.close();
+			new File(binPath).delete();
+			throw ex;
+		} finally {
+			out.close();
+		}
+		return first.numTrips;
+	}
+
+	private static ShardHeader readHeader(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			if(in.readInt() != MAGIC)
+				throw new IOException("Not a route cache shard: " + file);
+			int version = in.readInt();
+			if(version != FORMAT_VERSION)
+				throw new IOException("Unsupported shard version " + version + " at: " + file);
+			ShardHeader header = new ShardHeader();
+			header.file = file;
+			header.numTrips = in.readInt();
+			header.startTrip = in.readInt();
+			header.endTrip = in.readInt();
+			header.resolutionSecs = in.readInt();
+			header.bytesPerCell = in.readInt();
+			in.readInt();
+			header.fingerprint = in.readLong();
+			return header;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static class ShardHeader {
+		File file;
+		int numTrips;
+		int startTrip;
+		int endTrip;
+		int resolutionSecs;
+		int bytesPerCell;
+		long fingerprint;
+	}
+}
@@ -0,0 +1,192 @@
+package edu.pugetsound.npastor.routing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import edu.pugetsound.npastor.utils.Trip;
+
+/**
+ * The pairs of trips whose routes a simulation read from its route cache, as a bitmap
+ * with one bit per ordered pair. Record one with an InstrumentedRouteCache, then re-runs
+ * of the same trips can load just the traced routes, see TracedRouteCache. A trip pair
+ * covers all four routes between the two trips' endpoints.
+ *
+ *   File layout (big-endian):
+ *   int  magic           "TDTR"
+ *   int  version         FORMAT_VERSION
+ *   int  numTrips
+ *   int  reserved
+ *   long graphFingerprint See Routefinder.getGraphFingerprint()
+ *   Then the bitmap's long words, Deflate compressed. Bit t1 * numTrips + t2 marks pair (t1, t2)
+ *
+ * @author Nathan P
+ *
+ */
+public class RouteCacheTrace {
+
+	public static final String TAG = "RouteCacheTrace";
+
+	private static final int MAGIC = 0x54445452; // "TDTR"
+	private static final int FORMAT_VERSION = 1;
+
+	private int mNumTrips;
+	private long[] mPairs;
+
+	/**
+	 * Creates an empty trace
+	 * @param numTrips Number of trips. Identifiers run from 0 to numTrips - 1
+	 */
+	public RouteCacheTrace(int numTrips) {
+		mNumTrips = numTrips;
+		mPairs = new long[(int) (((long) numTrips * numTrips + 63) >>> 6)];
+	}
+
+	/**
+	 * Marks a pair of trips as traced
+	 * @param t1Id Id of the trip routes begin at
+	 * @param t2Id Id of the trip routes end at
+	 */
+	public void add(int t1Id, int t2Id) {
+		long bit = (long) t1Id * mNumTrips + t2Id;
+		mPairs[(int) (bit >>> 6)] |= 1L << (bit & 63);
+	}
+
+	/**
+	 * @param t1Id Id of the trip routes begin at
+	 * @param t2Id Id of the trip routes end at
+	 * @return True if routes from the first trip to the second were traced
+	 */
+	public boolean contains(int t1Id, int t2Id) {
+		long bit = (long) t1Id * mNumTrips + t2Id;
+		return (mPairs[(int) (bit >>> 6)] & (1L << (bit & 63))) != 0;
+	}
+
+	/**
+	 * @return Number of traced trip pairs
+	 */
+	public long getPairCount() {
+		long count = 0;
+		for(long word : mPairs)
+			count += Long.bitCount(word);
+		return count;
+	}
+
+	public int getNumTrips() {
+		return mNumTrips;
+	}
+
+	/**
+	 * Widens the trace by a margin, so a re-run whose schedules differ a little from the traced
+	 * run still finds most routes it reads. A pair is added when both trips appear anywhere in
+	 * the trace and their pickup times are no more than marginMins apart, in either order
+	 * @param trips All trips in the simulation
+	 * @param marginMins Pickup time margin in minutes. 0 only adds reverse pairs of traced pairs
+	 */
+	public void addMargin(ArrayList<Trip> trips, int marginMins) {
+		boolean[] traced = new boolean[mNumTrips];
+		for(int w = 0; w < mPairs.length; w++) {
+			long word = mPairs[w];
+			while(word != 0) {
+				long bit = ((long) w << 6) + Long.numberOfTrailingZeros(word);
+				word &= word - 1;
+				int t1 = (int) (bit / mNumTrips);
+				int t2 = (int) (bit % mNumTrips);
+				traced[t1] = true;
+				traced[t2] = true;
+				add(t2, t1);
+			}
+		}
+		if(marginMins <= 0)
+			return;
+
+		// Sweep the traced trips in pickup order, pairing each with those picked up soon after it
+		ArrayList<Trip> byPickup = new ArrayList<Trip>();
+		for(Trip t : trips) {
+			if(traced[t.getIdentifier()])
+				byPickup.add(t);
+		}
+		Trip[] sorted = byPickup.toArray(new Trip[byPickup.size()]);
+		Arrays.sort(sorted, new Comparator<Trip>() {
+			@Override
+			public int compare(Trip t1, Trip t2) {
+				return t1.getPickupTime() - t2.getPickupTime();
+			}
+		});
+		for(int i = 0; i < sorted.length; i++) {
+			for(int j = i + 1; j < sorted.length
+					&& sorted[j].getPickupTime() - sorted[i].getPickupTime() <= marginMins; j++) {
+				add(sorted[i].getIdentifier(), sorted[j].getIdentifier());
+				add(sorted[j].getIdentifier(), sorted[i].getIdentifier());
+			}
+		}
+	}
+
+	/**
+	 * Writes the trace to file
+	 * @param path Destination file
+	 * @param fingerprint Fingerprint of the graph the traced run was routed on
+	 * @throws IOException If the file can't be written
+	 */
+	public void write(String path, long fingerprint) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(mNumTrips);
+			out.writeInt(0);
+			out.writeLong(fingerprint);
+			out.flush();
+
+			// The bitmap is mostly zeros, so it compresses to a small fraction of its size
+			DataOutputStream bits = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(out)));
+			for(long word : mPairs)
+				bits.writeLong(word);
+			bits.close();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads a trace file
+	 * @param path The trace file
+	 * @param numTrips Expected number of trips
+	 * @param fingerprint Fingerprint of the graph in use
+	 * @return The trace
+	 * @throws IOException If the file can't be read, or does not match the trips or graph
+	 */
+	public static RouteCacheTrace read(String path, int numTrips, long fingerprint) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+		try {
+			if(in.readInt() != MAGIC)
+				throw new IOException("Not a route cache trace file: " + path);
+			int version = in.readInt();
+			if(version != FORMAT_VERSION)
+				throw new IOException("Unsupported trace file version " + version + " at: " + path);
+			int fileTrips = in.readInt();
+			if(fileTrips != numTrips)
+				throw new IOException("Trace file holds " + fileTrips + " trips, expected " + numTrips);
+			in.readInt();
+			if(in.readLong() != fingerprint)
+				throw new IOException("Trace was recorded on a different graph: " + path);
+
+			RouteCacheTrace trace = new RouteCacheTrace(numTrips);
+			DataInputStream bits = new DataInputStream(new BufferedInputStream(new InflaterInputStream(in)));
+			for(int i = 0; i < trace.mPairs.length; i++)
+				trace.mPairs[i] = bits.readLong();
+			return trace;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package edu.pugetsound.npastor.routing;
+
+/**
+ * The travel time and distance of a route, without its geometry or turn instructions.
+ * See Routefinder.findTravelTime()
+ * @author Nathan P
+ *
+ */
+public class RouteSummary {
+
+	private long mTime;
+	private double mDistance;
+	private boolean mFound;
+
+	/**
+	 * @param timeSecs Travel time in seconds
+	 * @param distanceMeters Driving distance in meters
+	 * @param found False if no route connects the endpoints
+	 */
+	public RouteSummary(long timeSecs, double distanceMeters, boolean found) {
+		mTime = timeSecs;
+		mDistance = distanceMeters;
+		mFound = found;
+	}
+
+	/**
+	 * @return Travel time in seconds, or 0 if no route was found
+	 */
+	public long getTime() {
+		return mTime;
+	}
+
+	/**
+	 * @return Driving distance in meters, or 0 if no route was found
+	 */
+	public double getDistance() {
+		return mDistance;
+	}
+
+	public boolean isFound() {
+		return mFound;
+	}
+}
@@ -1,17 +1,30 @@
 package edu.pugetsound.npastor.routing;
 
 import java.awt.geom.Point2D;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
 
 import com.graphhopper.GHRequest;
 import com.graphhopper.GHResponse;
 import com.graphhopper.GraphHopper;
 import com.graphhopper.GraphHopperAPI;
+import com.graphhopper.routing.Path;
+import com.graphhopper.routing.util.EdgeFilter;
+import com.graphhopper.storage.index.QueryResult;
 import com.graphhopper.util.PointList;
 
+import edu.pugetsound.npastor.utils.Constants;
 import edu.pugetsound.npastor.utils.Log;
 
 /**
- * For finding quickest driving distances between two points
+ * For finding quickest driving distances between two points. The street graph is large
+ * and slow to load, so it's loaded once, on first use, and shared read-only by every
+ * thread through getInstance(). GraphHopper keeps each query's search state to the query,
+ * so any number of threads can route through the one instance at once.
  * @author Nathan P
  *
  */
@@ -29,18 +42,57 @@ public class Routefinder {
 	// The pathfinding algorithm we'll use. Dijkstra Native appears to be the fastest
 	private static final String ROUTE_ALGORITHM = A_STAR_BI;
 	
+	/** Travel time of a route that can't be found, as a failed GHResponse reports it. Caches store it like any other time */
+	public static final int NOT_FOUND_SECS = 0;
+	
+	public static final String GRAPH_DIR = Constants.FILE_BASE_DIR + Constants.TACOMA_GRAPH_DIR;
+	
+	// Shared by every router. Consulted before routing, see setTravelTimeStore()
+	private static volatile TravelTimeStore mStore;
+	
+	// The one router, see getInstance()
+	private static volatile Routefinder mInstance;
+	
 	GraphHopperAPI mRouter;
 	
-	public Routefinder() {
+	private Routefinder() {
 		mRouter = new GraphHopper().forServer();
 		((GraphHopper) mRouter).setCHShortcuts("fastest");
 		
 		// Load the pre-built Tacoma street graph
-		mRouter.load("files/tac-gh");
+		mRouter.load(GRAPH_DIR);
+	}
+	
+	/**
+	 * Gets the shared router, loading the street graph if this is the first call
+	 * @return The router. Safe to use from any thread
+	 */
+	public static Routefinder getInstance() {
+		Routefinder instance = mInstance;
+		if(instance == null) {
+			synchronized(Routefinder.class) {
+				instance = mInstance;
+				if(instance == null) {
+					Log.d(TAG, "Loading street graph from: " + GRAPH_DIR);
+					instance = new Routefinder();
+					mInstance = instance;
+				}
+			}
+		}
+		return instance;
+	}
+	
+	/**
+	 * @return The GraphHopper instance holding this router's street graph
+	 */
+	GraphHopper getGraphHopper() {
+		return (GraphHopper) mRouter;
 	}
 	
 	/**
-	 * Finds driving directions between the two specified points
+	 * Finds driving directions between the two specified points, including the route's
+	 * geometry and turn instructions. Only use this where the geometry is needed, e.g. to
+	 * draw routes. findTravelTime() is much cheaper when only time or distance are needed
 	 * @param origin Trip origin location
 	 * @param destination Trip destination location
 	 * @return A GHResponse object representing result of routing
@@ -55,6 +107,50 @@ public class Routefinder {
 		return routeResponse;
 	}
 	
+	/**
+	 * Finds the travel time and distance between the two specified points. The route's
+	 * geometry and turn instructions are never built, and contraction shortcuts are only
+	 * unpacked as far as needed to sum the route's edges
+	 * @param origin Trip origin location
+	 * @param destination Trip destination location
+	 * @return The route's time and distance
+	 */
+	public RouteSummary findTravelTime(Point2D origin, Point2D destination) {
+		return findTravelTime(snapToNode(origin), snapToNode(destination));
+	}
+	
+	/**
+	 * Finds the travel time and distance between two graph nodes, see findTravelTime(Point2D, Point2D)
+	 * @param originNode Node to start from, see snapToNode()
+	 * @param destinationNode Node to end at
+	 * @return The route's time and distance
+	 */
+	public RouteSummary findTravelTime(int originNode, int destinationNode) {
+		if(originNode < 0 || destinationNode < 0)
+			return new RouteSummary(NOT_FOUND_SECS, 0, false);
+		// The prepared algorithm searches the contracted graph, like a full request does
+		Path path = getGraphHopper().getPreparation().createAlgo().calcPath(originNode, destinationNode);
+		if(!path.isFound())
+			return new RouteSummary(NOT_FOUND_SECS, 0, false);
+		return new RouteSummary(path.getTime(), path.getDistance(), true);
+	}
+	
+	/**
+	 * Sets a store of travel times that every router checks before routing, and adds
+	 * its newly routed travel times to
+	 * @param store The store, or null to always route
+	 */
+	public static void setTravelTimeStore(TravelTimeStore store) {
+		mStore = store;
+	}
+	
+	/**
+	 * @return The store set by setTravelTimeStore(), or null
+	 */
+	static TravelTimeStore getTravelTimeStore() {
+		return mStore;
+	}
+	
 	/**
 	 * A convenience method for finding the time required to drive between the 
 	 * specified points
@@ -62,8 +158,76 @@ public class Routefinder {
 	 * @param destination Trip destination location
 	 * @return The time in seconds to travel between the specified points
 	 */
-	public byte getTravelTimeMins(Point2D origin, Point2D destination) {
-		GHResponse response = findRoute(origin, destination);
-		return (byte) (response.getTime() / 60);
+	public int getTravelTimeSecs(Point2D origin, Point2D destination) {
+		return getTravelTimeSecs(origin, -1, destination, -1);
+	}
+	
+	/**
+	 * Finds the time required to drive between the specified points, starting from their
+	 * graph nodes if they're already snapped, see EndpointSnapCache
+	 * @param origin Trip origin location
+	 * @param originNode The origin's node, or -1 to snap the origin
+	 * @param destination Trip destination location
+	 * @param destinationNode The destination's node, or -1 to snap the destination
+	 * @return The time in seconds to travel between the specified points, or NOT_FOUND_SECS
+	 *         if no route connects them
+	 */
+	public int getTravelTimeSecs(Point2D origin, int originNode, Point2D destination, int destinationNode) {
+		TravelTimeStore store = mStore;
+		if(store != null) {
+			int travelTimeSecs = store.get(origin, destination);
+			if(travelTimeSecs != TravelTimeStore.MISSING)
+				return travelTimeSecs;
+		}
+		// Snapped ends skip the location index
+		RouteSummary route = findTravelTime(originNode >= 0 ? originNode : snapToNode(origin),
+				destinationNode >= 0 ? destinationNode : snapToNode(destination));
+		// A route that isn't found isn't stored, or later simulations would read it as a 0 second drive
+		if(store != null && route.isFound())
+			store.put(origin, destination, (int) route.getTime());
+		return (int) route.getTime();
+	}
+	
+	/**
+	 * Finds the street graph node closest to the specified point. Routing starts and
+	 * ends at the closest node, so any two points snapping to the same node have the
+	 * same travel times
+	 * @param location The location to snap
+	 * @return The node id, or -1 if no node is near the point
+	 */
+	public int snapToNode(Point2D location) {
+		QueryResult result = ((GraphHopper) mRouter).getLocationIndex()
+				.findClosest(location.getY(), location.getX(), EdgeFilter.ALL_EDGES);
+		if(result == null || !result.isValid())
+			return -1;
+		return result.getClosestNode();
+	}
+	
+	/**
+	 * Computes a fingerprint of the street graph on disk. Anything derived from routing
+	 * (e.g. a route cache file) can store this to detect that the graph has since changed
+	 * @return A CRC32 over the names and contents of all graph files
+	 * @throws IOException If the graph files can't be read
+	 */
+	public static long getGraphFingerprint() throws IOException {
+		File[] files = new File(GRAPH_DIR).listFiles();
+		if(files == null)
+			throw new IOException("No graph found at: " + GRAPH_DIR);
+		Arrays.sort(files);
+		
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[64 * 1024];
+		for(File f : files) {
+			crc.update(f.getName().getBytes("UTF-8"));
+			InputStream in = new FileInputStream(f);
+			try {
+				int read;
+				while((read = in.read(buffer)) != -1)
+					crc.update(buffer, 0, read);
+			} finally {
+				in.close();
+			}
+		}
+		return crc.getValue();
 	}
 }
@@ -1,86 +1,156 @@
 package edu.pugetsound.npastor.routing;
 
 import java.util.ArrayList;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.pugetsound.npastor.routing.RouteCache.RouteCacheBuilder;
+import edu.pugetsound.npastor.routing.RouteCacheScheduler.ItemRouter;
+import edu.pugetsound.npastor.utils.Log;
 import edu.pugetsound.npastor.utils.Trip;
 
+/**
+ * A worker of a RouteCacheScheduler build. Claims chunks of trips and routes both rows
+ * of every trip in them, until no chunks are left or the build is cancelled. Builds that
+ * aren't split by trip are routed by their ItemRouter instead
+ * @author Nathan P
+ *
+ */
 public class RoutefinderTask implements Runnable {
 	
 	public static final String TAG = "RoutefinderTask";
 
 	private static final int UPDATE_INTERVAL = 1000; // Update progress at this interval
 	
-	private RouteCacheBuilder mCache;
-	private ArrayList<Trip> mTrips;
-	private int mStartIndex;
-	private int mEndIndex;
-	private CountDownLatch mLatch;
-	private AtomicInteger mProgress;
-
-
-	public RoutefinderTask (RouteCacheBuilder cache, ArrayList<Trip> trips, 
-			int startI, int endI, CountDownLatch latch, AtomicInteger progress) {
-		mCache = cache;
-		mTrips = trips;
-		mStartIndex = startI;
-		mEndIndex = endI;
-		mLatch = latch;
-		mProgress = progress;
+	// Fill each row with a single one-to-all search rather than a query per cell. See MatrixRoutefinder
+	private static final boolean MATRIX_ROUTING = true;
+	
+	private RouteCacheScheduler mScheduler;
+
+	RoutefinderTask(RouteCacheScheduler scheduler) {
+		mScheduler = scheduler;
 	}
 
 	public void run() {
-		Routefinder router = new Routefinder();
-		int routedAtLastUpdate = 0;
-		int totalRouted = 0;
-
-		for(int i = mStartIndex; i < mEndIndex; i++) {
-
-			// This trip's route
-			Trip t1 = mTrips.get(i);
-			int t1Id = t1.getIdentifier();
-			mCache.putHash(t1Id, true, t1Id, false, 
-					router.getTravelTimeMins(t1.getOriginPoint(), t1.getDestinationPoint()));
-
-			totalRouted++;
-			for(int j = 0; j < mTrips.size(); j++) {
-				Trip t2 = mTrips.get(j);
-				int t2Id = t2.getIdentifier();
-
-				// Don't route trips to themselves
-				if(t1Id == t2Id) continue;
-
-				// T1 origin to T2 origin
-				mCache.putHash(t1Id, true, t2Id, true, 
-						router.getTravelTimeMins(t1.getOriginPoint(), t2.getOriginPoint()));
-
-				// T1 origin to T2 dest
-				mCache.putHash(t1Id, true, t2Id, false,
-						router.getTravelTimeMins(t1.getOriginPoint(), t2.getDestinationPoint()));
-			
-				// T1 dest to T2 origin
-				mCache.putHash(t1Id, false, t2Id, true,
-						router.getTravelTimeMins(t1.getDestinationPoint(), t2.getOriginPoint()));
+		try {
+			ItemRouter router = mScheduler.getItemRouter();
+			if(router == null) {
+				MatrixRoutefinder matrixRouter = MATRIX_ROUTING ? 
+						MatrixRoutefinder.create(Routefinder.getInstance(), mScheduler.getSnapCache()) : null;
+				router = new TripRouter(mScheduler, matrixRouter);
+			}
 			
-				// T1 dest to T2 dest
-				mCache.putHash(t1Id, false, t2Id, false, 
-						router.getTravelTimeMins(t1.getDestinationPoint(), t2.getDestinationPoint()));
-				
-				totalRouted = totalRouted + 4;
+			int chunk;
+			while((chunk = mScheduler.claimChunk()) >= 0) {
+				if(routeItems(router, mScheduler.getChunkStart(chunk), mScheduler.getChunkEnd(chunk)))
+					mScheduler.onChunkComplete(chunk);
 			}
-			int increment = totalRouted - routedAtLastUpdate;
+		} catch (Throwable ex) {
+			// Errors too, e.g. running out of memory. Otherwise the build would look complete
+			// with this worker's chunk unrouted
+			Log.e(TAG, "Routing failed. " + ex.getMessage());
+			ex.printStackTrace();
+			mScheduler.onWorkerFailed(ex);
+		} finally {
+			// Work is done, decrement latch
+			mScheduler.onWorkerFinished();
+		}
+	}
+
+	/**
+	 * Routes a chunk of the build
+	 * @param router Routes each trip or item
+	 * @param start The first trip or item
+	 * @param end One more than the last trip or item
+	 * @return True if every trip was routed, false if the build was cancelled first
+	 */
+	private boolean routeItems(ItemRouter router, int start, int end) {
+		AtomicLong progress = mScheduler.getProgress();
+		long routedAtLastUpdate = 0;
+		long totalRouted = 0;
+
+		for(int i = start; i < end; i++) {
+			if(mScheduler.isCancelled())
+				break;
+			totalRouted += router.routeItem(i);
+			long increment = totalRouted - routedAtLastUpdate;
 			
-			// To avoid synchronization bottlenecks on the AtomicInteger,
+			// To avoid synchronization bottlenecks on the AtomicLong,
 			// don't update every iteration
 			if(increment > UPDATE_INTERVAL) {
-				mProgress.addAndGet(increment);
+				progress.addAndGet(increment);
 				routedAtLastUpdate = totalRouted;
 			}
 		}
+		progress.addAndGet(totalRouted - routedAtLastUpdate);
+		return !mScheduler.isCancelled();
+	}
+
+	/**
+	 * Routes both rows of each trip of a build split by trip. Each worker has its own
+	 */
+	private static class TripRouter implements ItemRouter {
+
+		private RouteCacheScheduler mScheduler;
+		private MatrixRoutefinder mMatrixRouter;
+
+		/**
+		 * @param scheduler The build
+		 * @param matrixRouter If non-null, routes each trip's rows. Otherwise each route is routed on its own
+		 */
+		TripRouter(RouteCacheScheduler scheduler, MatrixRoutefinder matrixRouter) {
+			mScheduler = scheduler;
+			mMatrixRouter = matrixRouter;
+		}
+
+		@Override
+		public int routeItem(int tripId) {
+			RouteCacheBuilder cache = mScheduler.getBuilder();
+			if(mMatrixRouter != null)
+				return mMatrixRouter.routeTrip(cache, tripId);
+			return routeTrip(cache, mScheduler.getSnapCache(), mScheduler.getTrip(tripId), mScheduler.getTrips());
+		}
+	}
+
+	/**
+	 * Routes every route starting at the specified trip, filling both of its rows
+	 * @param cache Builder of the cache to fill
+	 * @param snaps Graph nodes of the trip endpoints, which routes start from
+	 * @param t1 The trip
+	 * @param trips All trips in the simulation
+	 * @return Number of routes calculated
+	 */
+	static int routeTrip(RouteCacheBuilder cache, EndpointSnapCache snaps, Trip t1, ArrayList<Trip> trips) {
+		int totalRouted = 0;
+
+		// This trip's route
+		int t1Id = t1.getIdentifier();
+		int t1Origin = RouteCache.hash(t1Id, true);
+		int t1Dest = RouteCache.hash(t1Id, false);
+		cache.putDirect(t1Origin, t1Dest, snaps.getTravelTimeSecs(t1Origin, t1Dest));
+
+		totalRouted++;
+		for(int j = 0; j < trips.size(); j++) {
+			int t2Id = trips.get(j).getIdentifier();
+
+			// Don't route trips to themselves
+			if(t1Id == t2Id) continue;
+			int t2Origin = RouteCache.hash(t2Id, true);
+			int t2Dest = RouteCache.hash(t2Id, false);
+
+			// T1 origin to T2 origin
+			cache.putDirect(t1Origin, t2Origin, snaps.getTravelTimeSecs(t1Origin, t2Origin));
+
+			// T1 origin to T2 dest
+			cache.putDirect(t1Origin, t2Dest, snaps.getTravelTimeSecs(t1Origin, t2Dest));
+		
+			// T1 dest to T2 origin
+			cache.putDirect(t1Dest, t2Origin, snaps.getTravelTimeSecs(t1Dest, t2Origin));
 		
-		// Work is done, decrement latch
-		mLatch.countDown();
+			// T1 dest to T2 dest
+			cache.putDirect(t1Dest, t2Dest, snaps.getTravelTimeSecs(t1Dest, t2Dest));
+			
+			totalRouted = totalRouted + 4;
+		}
+		return totalRouted;
 	}
 }
@@ -0,0 +1,177 @@
+package edu.pugetsound.npastor.routing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import edu.pugetsound.npastor.utils.Constants;
+import edu.pugetsound.npastor.utils.Trip;
+
+/**
+ * A route cache that only stores travel times between trip endpoints which could be
+ * adjacent in a feasible schedule. Each endpoint has a service interval, from the
+ * earliest time it can be serviced (the requested pickup, or the pickup plus the direct
+ * ride for a dropoff) to the latest (the end of the pickup window, plus the maximum ride
+ * time for a dropoff). The route from endpoint a to endpoint b is stored only if
+ *   1) b's interval doesn't close before a's opens, and
+ *   2) b's interval opens less than the horizon after a's closes.
+ * For a full day of demand that's a band around the diagonal instead of the whole matrix.
+ *
+ * Routes failing 1) can never be driven in a feasible schedule, so they read as
+ * UNREACHABLE. Routes failing 2) are always followed by idle time, since the vehicle
+ * arrives early no matter the route, so they read as the horizon, which must be an
+ * upper bound on any travel time in the service area.
+ *
+ * The stored routes are kept in compressed sparse row (CSR) form: for every row, a sorted
+ * run of column indices and their travel times, packed as 16 bit ticks.
+ * Use SparseRoutefinderTask to route them.
+ * @author Nathan P
+ *
+ */
+public class SparseRouteCache extends RouteCache {
+
+	private int mHorizonSecs;
+
+	// Earliest and latest service times of each endpoint, in seconds. Earliest times are
+	// rounded down and latest times up, so the intervals never come out narrower than the
+	// windows the scheduler checks
+	private int[] mEarliest;
+	private int[] mLatest;
+
+	// CSR arrays. The routes of row i are at [mRowStarts[i], mRowStarts[i+1])
+	private int[] mRowStarts;
+	private int[] mColumns;
+	private char[] mValues;
+
+	/**
+	 * Lists every route that could be driven in a feasible schedule. Travel times
+	 * are all zero until routed.
+	 * @param trips All trips in the simulation. Identifiers must run from 0 to trips.size() - 1
+	 * @param horizonMins Upper bound on the travel time between any two points
+	 */
+	public SparseRouteCache(ArrayList<Trip> trips, int horizonMins) {
+		super(trips.size(), TravelTimeCodec.SECONDS_5_16);
+		mHorizonSecs = horizonMins * 60;
+		mEarliest = new int[mSize];
+		mLatest = new int[mSize];
+
+		int maxInterval = 0;
+		for(Trip t : trips) {
+			// Same ride time limit as RebusScheduleTask.maxTravelTime(), in seconds
+			long directSecs = t.getRoute().getTime();
+			int origin = hash(t.getIdentifier(), true);
+			int dest = hash(t.getIdentifier(), false);
+			mEarliest[origin] = t.getPickupTime() * 60;
+			mLatest[origin] = (t.getPickupTime() + Constants.PICKUP_SERVICE_WINDOW) * 60;
+			mEarliest[dest] = mEarliest[origin] + (int) directSecs;
+			mLatest[dest] = mLatest[origin] + (int) Math.ceil(directSecs * (double) Rebus.MAX_TRAVEL_COEFF);
+			maxInterval = Math.max(maxInterval, mLatest[dest] - mEarliest[dest]);
+			maxInterval = Math.max(maxInterval, mLatest[origin] - mEarliest[origin]);
+		}
+
+		// Sort endpoints by earliest service time. Packing time and index into a long
+		// lets us sort primitives
+		long[] byEarliest = new long[mSize];
+		for(int i = 0; i < mSize; i++) {
+			byEarliest[i] = ((long) mEarliest[i] << 32) | i;
+		}
+		Arrays.sort(byEarliest);
+		int[] sortedEarliest = new int[mSize];
+		for(int i = 0; i < mSize; i++) {
+			sortedEarliest[i] = (int) (byEarliest[i] >>> 32);
+		}
+
+		// First pass counts the routes in each row, second pass fills them in
+		mRowStarts = new int[mSize + 1];
+		long total = 0;
+		for(int pass = 0; pass < 2; pass++) {
+			for(int a = 0; a < mSize; a++) {
+				// Condition 1 needs latest_b >= earliest_a, and since no interval is longer than
+				// maxInterval, that rules out every b with earliest_b < earliest_a - maxInterval
+				int from = lowerBound(sortedEarliest, mEarliest[a] - maxInterval);
+				int to = lowerBound(sortedEarliest, mLatest[a] + mHorizonSecs + 1);
+				int count = 0;
+				for(int k = from; k < to; k++) {
+					int b = (int) byEarliest[k];
+					if(b != a && mLatest[b] >= mEarliest[a]) {
+						if(pass == 1)
+							mColumns[mRowStarts[a] + count] = b;
+						count++;
+					}
+				}
+				if(pass == 0) {
+					mRowStarts[a + 1] = count;
+					total += count;
+				} else {
+					Arrays.sort(mColumns, mRowStarts[a], mRowStarts[a + 1]);
+				}
+			}
+			if(pass == 0) {
+				if(total > Integer.MAX_VALUE - 8)
+					throw new IllegalStateException(total + " routes is too many for a sparse cache. "
+							+ "Try a shorter horizon");
+				for(int a = 0; a < mSize; a++) {
+					mRowStarts[a + 1] += mRowStarts[a];
+				}
+				mColumns = new int[(int) total];
+				mValues = new char[(int) total];
+			}
+		}
+	}
+
+	@Override
+	public int getDirect(int i1, int i2) {
+		if(i1 == i2)
+			return 0;
+		int k = Arrays.binarySearch(mColumns, mRowStarts[i1], mRowStarts[i1 + 1], i2);
+		if(k >= 0)
+			return mCodec.decode(mValues[k]);
+		return mEarliest[i1] > mLatest[i2] ? UNREACHABLE : mHorizonSecs;
+	}
+
+	@Override
+	protected void putDirect(int i1, int i2, int travelTimeSecs) {
+		int k = Arrays.binarySearch(mColumns, mRowStarts[i1], mRowStarts[i1 + 1], i2);
+		if(k < 0)
+			throw new IllegalArgumentException("Route " + i1 + " -> " + i2 + " is not stored in this cache");
+		setValue(k, travelTimeSecs);
+	}
+
+	/**
+	 * @return Number of routes stored
+	 */
+	public int getStoredCount() {
+		return mColumns.length;
+	}
+
+	// ********************************
+	//    FOR USE BY ROUTING WORKERS
+	// ********************************
+
+	int getRowStart(int row) {
+		return mRowStarts[row];
+	}
+
+	int getColumn(int k) {
+		return mColumns[k];
+	}
+
+	void setValue(int k, int travelTimeSecs) {
+		mValues[k] = (char) mCodec.encode(travelTimeSecs);
+	}
+
+	/**
+	 * @return Index of the first element of the sorted array that is >= key
+	 */
+	private static int lowerBound(int[] sorted, int key) {
+		int low = 0;
+		int high = sorted.length;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(sorted[mid] < key)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+}
@@ -0,0 +1,45 @@
+package edu.pugetsound.npastor.routing;
+
+import java.util.ArrayList;
+
+import edu.pugetsound.npastor.routing.RouteCacheScheduler.ItemRouter;
+import edu.pugetsound.npastor.utils.Trip;
+
+/**
+ * Routes the stored routes of a SparseRouteCache a row at a time. The rows are the items
+ * of a RouteCacheScheduler build, so the short rows at the ends of the day don't leave
+ * workers idle
+ * @author Nathan P
+ *
+ */
+public class SparseRoutefinderTask implements ItemRouter {
+
+	public static final String TAG = "SparseRoutefinderTask";
+
+	private SparseRouteCache mCache;
+	private EndpointSnapCache mSnaps; // Indexed by cache row
+
+	/**
+	 * @param cache The cache to route
+	 * @param trips All trips in the simulation. Identifiers must run from 0 to trips.size() - 1
+	 */
+	public SparseRoutefinderTask(SparseRouteCache cache, ArrayList<Trip> trips) {
+		mCache = cache;
+		mSnaps = new EndpointSnapCache(Routefinder.getInstance(), trips);
+	}
+
+	/**
+	 * Routes every stored route of a row
+	 * @param row The cache row
+	 * @return Number of routes calculated
+	 */
+	@Override
+	public int routeItem(int row) {
+		int start = mCache.getRowStart(row);
+		int end = mCache.getRowStart(row + 1);
+		for(int k = start; k < end; k++) {
+			mCache.setValue(k, mSnaps.getTravelTimeSecs(row, mCache.getColumn(k)));
+		}
+		return end - start;
+	}
+}
@@ -0,0 +1,195 @@
+package edu.pugetsound.npastor.routing;
+
+import java.util.Arrays;
+
+/**
+ * A concurrent map from non-negative long keys to char (unsigned 16 bit) values, with a bounded number
+ * of entries. Keys are spread over independently locked stripes, and each stripe is an
+ * open addressing table of primitive arrays, so entries cost no objects.
+ *
+ * Once a stripe is full, each insert evicts one cold entry using the CLOCK (second
+ * chance) policy: every read marks its entry as referenced, and the clock hand skips
+ * and clears referenced entries until it finds one that hasn't been read since.
+ * @author Nathan P
+ *
+ */
+class StripedLongCharMap {
+
+	// Returned by get() when the key is absent. Values are stored as chars, so
+	// this can never collide with a stored value
+	public static final int MISSING = Integer.MIN_VALUE;
+
+	// Bytes per entry: 8 (key) + 2 (value) + 1 (referenced flag), at a load factor of 1/2
+	public static final int BYTES_PER_ENTRY = 22;
+
+	private static final int NUM_STRIPES = 64;
+	private static final long EMPTY = -1;
+
+	private Stripe[] mStripes;
+
+	/**
+	 * @param memoryBudgetBytes Approximate memory the map may use
+	 */
+	public StripedLongCharMap(long memoryBudgetBytes) {
+		long maxEntries = Math.max(memoryBudgetBytes / BYTES_PER_ENTRY, NUM_STRIPES);
+		int stripeEntries = (int) Math.min(maxEntries / NUM_STRIPES, 1 << 29);
+		mStripes = new Stripe[NUM_STRIPES];
+		for(int i = 0; i < NUM_STRIPES; i++) {
+			mStripes[i] = new Stripe(stripeEntries);
+		}
+	}
+
+	/**
+	 * @param key The key
+	 * @return The value for this key, or MISSING if the key is absent
+	 */
+	public int get(long key) {
+		long hash = mix(key);
+		return mStripes[(int) (hash >>> 58)].get(key, hash);
+	}
+
+	/**
+	 * Puts a value in the map, evicting a cold entry if the key's stripe is full
+	 * @param key A non-negative key
+	 * @param value The value
+	 */
+	public void put(long key, char value) {
+		long hash = mix(key);
+		mStripes[(int) (hash >>> 58)].put(key, hash, value);
+	}
+
+	/**
+	 * @return Number of entries currently in the map
+	 */
+	public long size() {
+		long size = 0;
+		for(Stripe s : mStripes) {
+			synchronized(s) {
+				size += s.mSize;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return Number of entries evicted so far
+	 */
+	public long evictions() {
+		long evictions = 0;
+		for(Stripe s : mStripes) {
+			synchronized(s) {
+				evictions += s.mEvictions;
+			}
+		}
+		return evictions;
+	}
+
+	// The top 6 bits of the mixed key pick the stripe, the low bits the slot
+	private static long mix(long key) {
+		key *= 0x9E3779B97F4A7C15L;
+		return key ^ (key >>> 32);
+	}
+
+	/**
+	 * One independently locked linear probing table
+	 */
+	private static class Stripe {
+
+		private long[] mKeys;
+		private char[] mValues;
+		private boolean[] mReferenced;
+		private int mMask;
+		private int mMaxEntries;
+		private int mSize;
+		private int mClockHand;
+		private long mEvictions;
+
+		Stripe(int maxEntries) {
+			mMaxEntries = maxEntries;
+			int capacity = Integer.highestOneBit(Math.max(maxEntries, 1)) << 1; // Load factor <= 1/2
+			mKeys = new long[capacity];
+			mValues = new char[capacity];
+			mReferenced = new boolean[capacity];
+			mMask = capacity - 1;
+			Arrays.fill(mKeys, EMPTY);
+		}
+
+		synchronized int get(long key, long hash) {
+			int slot = (int) hash & mMask;
+			while(mKeys[slot] != EMPTY) {
+				if(mKeys[slot] == key) {
+					mReferenced[slot] = true;
+					return mValues[slot];
+				}
+				slot = (slot + 1) & mMask;
+			}
+			return MISSING;
+		}
+
+		synchronized void put(long key, long hash, char value) {
+			int slot = (int) hash & mMask;
+			while(mKeys[slot] != EMPTY) {
+				if(mKeys[slot] == key) {
+					mValues[slot] = value;
+					return;
+				}
+				slot = (slot + 1) & mMask;
+			}
+			if(mSize >= mMaxEntries) {
+				evictOne();
+				// Eviction may have shifted entries into our slot, find a free one again
+				slot = (int) hash & mMask;
+				while(mKeys[slot] != EMPTY)
+					slot = (slot + 1) & mMask;
+			}
+			mKeys[slot] = key;
+			mValues[slot] = value;
+			mReferenced[slot] = false;
+			mSize++;
+		}
+
+		/**
+		 * Advances the clock hand to the first entry that hasn't been referenced
+		 * since the hand last passed it, and removes that entry
+		 */
+		private void evictOne() {
+			while(true) {
+				mClockHand = (mClockHand + 1) & mMask;
+				if(mKeys[mClockHand] == EMPTY)
+					continue;
+				if(mReferenced[mClockHand]) {
+					mReferenced[mClockHand] = false;
+					continue;
+				}
+				remove(mClockHand);
+				mEvictions++;
+				return;
+			}
+		}
+
+		/**
+		 * Removes the entry at the slot, shifting later entries of the probe
+		 * sequence back so lookups never stop at the hole
+		 */
+		private void remove(int slot) {
+			int hole = slot;
+			int next = (hole + 1) & mMask;
+			while(mKeys[next] != EMPTY) {
+				int home = (int) mix(mKeys[next]) & mMask;
+				// Move the entry if its home slot is not between the hole and its current slot
+				boolean movable = (hole <= next) ? (home <= hole || home > next)
+						: (home <= hole && home > next);
+				if(movable) {
+					mKeys[hole] = mKeys[next];
+					mValues[hole] = mValues[next];
+					mReferenced[hole] = mReferenced[next];
+					hole = next;
+				}
+				next = (next + 1) & mMask;
+			}
+			mKeys[hole] = EMPTY;
+			mReferenced[hole] = false;
+			mSize--;
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package edu.pugetsound.npastor.routing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import edu.pugetsound.npastor.utils.Log;
+
+/**
+ * A read-only route cache backed by a tiled cache file, for matrices bigger than memory.
+ * Only a bounded number of tiles are resident at once, and the least recently used tile
+ * is evicted to make room. Tiles the scheduler is about to need can be loaded ahead of
+ * time on a background thread with prefetch(), so reads rarely wait on the disk.
+ * See TiledRouteCacheFile.
+ * @author Nathan P
+ *
+ */
+public class TiledRouteCache extends RouteCache {
+
+	public static final String TAG = "TiledRouteCache";
+
+	private FileChannel mChannel;
+	private int mTileSize;
+	private int mNumTiles; // Tiles per side of the matrix
+	private int mCellShift;
+	private int mTileBytes;
+	private int mMaxResident;
+	private LinkedHashMap<Integer, byte[]> mTiles;
+	private HashSet<Integer> mPending; // Tiles queued for prefetch
+	private ExecutorService mPrefetcher;
+
+	private long mReads; // Tiles read from disk
+	private long mPrefetches; // Of those, tiles read ahead of time
+
+	TiledRouteCache(int numTrips, TravelTimeCodec codec, FileChannel channel, int tileSize, long residentBytes) {
+		super(numTrips, codec);
+		mChannel = channel;
+		mTileSize = tileSize;
+		mNumTiles = (mSize + tileSize - 1) / tileSize;
+		mCellShift = codec.getCellShift();
+		mTileBytes = (tileSize * tileSize) << mCellShift;
+		mMaxResident = (int) Math.max(2, residentBytes / mTileBytes);
+		mPending = new HashSet<Integer>();
+
+		mTiles = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+				return size() > mMaxResident;
+			}
+		};
+
+		mPrefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, TAG + " prefetch");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	@Override
+	public int getDirect(int i1, int i2) {
+		int tr = i1 / mTileSize;
+		int tc = i2 / mTileSize;
+		byte[] tile = getTile(tr * mNumTiles + tc);
+
+		int offset = ((i1 - tr * mTileSize) * mTileSize + (i2 - tc * mTileSize)) << mCellShift;
+		int ticks = (mCellShift == 0) ? tile[offset] & 0xFF
+				: ((tile[offset] & 0xFF) << 8) | (tile[offset + 1] & 0xFF);
+		return mCodec.decode(ticks);
+	}
+
+	@Override
+	protected void putDirect(int i1, int i2, int travelTimeSecs) {
+		throw new UnsupportedOperationException("Tiled caches are read-only");
+	}
+
+	/**
+	 * Queues the tiles holding routes between the specified trips to be loaded in the
+	 * background. At most half of the resident tiles are queued, so prefetching never
+	 * evicts tiles it has just loaded. Tiles already resident or queued are skipped
+	 * @param tripIds Identifiers of trips whose routes will be needed soon
+	 */
+	public void prefetch(Collection<Integer> tripIds) {
+		TreeSet<Integer> tileRows = new TreeSet<Integer>();
+		for(int id : tripIds)
+			tileRows.add(hash(id, true) / mTileSize);
+
+		int queued = 0;
+		for(int tr : tileRows) {
+			for(int tc : tileRows) {
+				if(queued >= mMaxResident / 2)
+					return;
+				final int tile = tr * mNumTiles + tc;
+				synchronized(mTiles) {
+					if(mTiles.containsKey(tile) || !mPending.add(tile))
+						continue;
+				}
+				queued++;
+				mPrefetcher.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							byte[] data = readTile(tile);
+							synchronized(mTiles) {
+								mTiles.put(tile, data);
+								mPrefetches++;
+							}
+						} catch (IllegalStateException ex) {
+							// A read that needs the tile will try again and report the error
+							Log.e(TAG, "Unable to prefetch tile " + tile + ". " + ex.getMessage());
+						} finally {
+							synchronized(mTiles) {
+								mPending.remove(tile);
+							}
+						}
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * @return Number of tiles read from disk, including prefetched tiles
+	 */
+	public long getTileReadCount() {
+		synchronized(mTiles) {
+			return mReads;
+		}
+	}
+
+	/**
+	 * @return Number of tiles read from disk ahead of time
+	 */
+	public long getPrefetchCount() {
+		synchronized(mTiles) {
+			return mPrefetches;
+		}
+	}
+
+	/**
+	 * Stops prefetching and closes the cache file. The cache can't be read afterwards
+	 */
+	public void close() {
+		mPrefetcher.shutdownNow();
+		try {
+			mChannel.close();
+		} catch (IOException ex) {
+			Log.e(TAG, "Unable to close tiled cache file. " + ex.getMessage());
+		}
+	}
+
+	private byte[] getTile(int tile) {
+		byte[] data;
+		synchronized(mTiles) {
+			data = mTiles.get(tile);
+		}
+		if(data == null) {
+			// Read outside of the lock. A read racing a prefetch of the same tile costs a
+			// duplicate read but gives the same cells
+			data = readTile(tile);
+			synchronized(mTiles) {
+				mTiles.put(tile, data);
+			}
+		}
+		return data;
+	}
+
+	private byte[] readTile(int tile) {
+		ByteBuffer buffer = ByteBuffer.allocate(mTileBytes);
+		try {
+			// Positional reads leave the channel position alone, so threads can read concurrently
+			long position = TiledRouteCacheFile.HEADER_BYTES + (long) tile * mTileBytes;
+			while(buffer.hasRemaining()) {
+				int read = mChannel.read(buffer, position);
+				if(read < 0)
+					throw new IOException("Unexpected end of cache file in tile " + tile);
+				position += read;
+			}
+		} catch (IOException ex) {
+			throw new IllegalStateException("Unable to read route cache tile " + tile, ex);
+		}
+		synchronized(mTiles) {
+			mReads++;
+		}
+		return buffer.array();
+	}
+}
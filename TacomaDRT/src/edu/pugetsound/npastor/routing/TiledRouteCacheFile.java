@@ -0,0 +1,130 @@
+package edu.pugetsound.npastor.routing;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads and writes the tiled route cache file, for caches too large to keep in memory.
+ * The matrix is split into square tiles of tileSize rows and columns, and each tile is
+ * stored contiguously, so a tile is read from disk in one piece. Tiles on the right and
+ * bottom edges are padded to full size, which keeps every tile at a fixed offset.
+ *
+ *   Header layout (big-endian):
+ *   int  magic           "TDRT"
+ *   int  version         FORMAT_VERSION
+ *   int  numTrips        Matrix is (2 * numTrips)^2 cells
+ *   int  resolutionSecs  Seconds per stored tick
+ *   int  bytesPerCell    1, or 2 for big-endian unsigned shorts
+ *   int  tileSize        Rows and columns per tile
+ *   long graphFingerprint See Routefinder.getGraphFingerprint()
+ *
+ * Then the tiles, ordered by tile row, then tile column. Each tile's cells are ordered
+ * by row, then column, and packed as in RouteCacheFile.
+ * @author Nathan P
+ *
+ */
+public class TiledRouteCacheFile {
+
+	public static final String TAG = "TiledRouteCacheFile";
+
+	private static final int MAGIC = 0x54445254; // "TDRT"
+	private static final int FORMAT_VERSION = 1;
+	static final int HEADER_BYTES = 32;
+
+	/** Rows and columns per tile. A tile is 1 MB with one byte cells */
+	public static final int DEFAULT_TILE_SIZE = 1024;
+
+	/**
+	 * Writes the cache to a tiled cache file
+	 * @param cache The cache to write
+	 * @param path Destination file
+	 * @param fingerprint Fingerprint of the graph the cache was routed on
+	 * @param tileSize Rows and columns per tile. Must be even, so both endpoints of a trip share a tile
+	 * @throws IOException If the file can't be written
+	 */
+	public static void write(RouteCache cache, String path, long fingerprint, int tileSize) throws IOException {
+		if(tileSize <= 0 || tileSize % 2 != 0)
+			throw new IllegalArgumentException("Tile size must be even and positive: " + tileSize);
+		int size = cache.getSize();
+		TravelTimeCodec codec = cache.getCodec();
+		int numTiles = (size + tileSize - 1) / tileSize;
+		boolean wide = codec.getBytesPerCell() == 2;
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(size / 2);
+			out.writeInt(codec.getResolutionSecs());
+			out.writeInt(codec.getBytesPerCell());
+			out.writeInt(tileSize);
+			out.writeLong(fingerprint);
+
+			byte[] tile = new byte[tileSize * tileSize * codec.getBytesPerCell()];
+			for(int tr = 0; tr < numTiles; tr++) {
+				for(int tc = 0; tc < numTiles; tc++) {
+					int pos = 0;
+					for(int i = tr * tileSize; i < (tr + 1) * tileSize; i++) {
+						for(int j = tc * tileSize; j < (tc + 1) * tileSize; j++) {
+							int ticks = (i < size && j < size) ? codec.encode(cache.getDirect(i, j)) : 0;
+							if(wide)
+								tile[pos++] = (byte) (ticks >>> 8);
+							tile[pos++] = (byte) ticks;
+						}
+					}
+					out.write(tile, 0, pos);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Opens a tiled cache file. The file stays open for the life of the cache
+	 * @param path The tiled cache file
+	 * @param numTrips Expected number of trips
+	 * @param fingerprint Fingerprint of the graph in use
+	 * @param residentBytes Memory to keep tiles in
+	 * @return A read-only route cache backed by the file
+	 * @throws IOException If the file can't be read, or does not match the trips or graph
+	 */
+	public static TiledRouteCache open(String path, int numTrips, long fingerprint, long residentBytes) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		boolean opened = false;
+		try {
+			if(file.readInt() != MAGIC)
+				throw new IOException("Not a tiled route cache file: " + path);
+			int version = file.readInt();
+			if(version != FORMAT_VERSION)
+				throw new IOException("Unsupported cache file version " + version + " at: " + path);
+			int fileTrips = file.readInt();
+			if(fileTrips != numTrips)
+				throw new IOException("Cache file holds " + fileTrips + " trips, expected " + numTrips);
+			TravelTimeCodec codec;
+			try {
+				codec = new TravelTimeCodec(file.readInt(), file.readInt());
+			} catch (IllegalArgumentException ex) {
+				throw new IOException("Unsupported cache resolution at: " + path + "\n  " + ex.getMessage());
+			}
+			int tileSize = file.readInt();
+			if(file.readLong() != fingerprint)
+				throw new IOException("Cache file was built on a different graph: " + path);
+
+			int numTiles = (numTrips * 2 + tileSize - 1) / tileSize;
+			long tileBytes = (long) tileSize * tileSize * codec.getBytesPerCell();
+			if(file.length() != HEADER_BYTES + (long) numTiles * numTiles * tileBytes)
+				throw new IOException("Cache file is truncated: " + path);
+
+			TiledRouteCache cache = new TiledRouteCache(numTrips, codec, file.getChannel(), tileSize, residentBytes);
+			opened = true;
+			return cache;
+		} finally {
+			if(!opened)
+				file.close();
+		}
+	}
+}
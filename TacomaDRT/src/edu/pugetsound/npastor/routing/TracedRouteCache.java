@@ -0,0 +1,153 @@
+package edu.pugetsound.npastor.routing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.pugetsound.npastor.utils.Trip;
+
+/**
+ * A route cache holding only the routes between trip pairs in a RouteCacheTrace, for re-runs
+ * of a simulation whose cache reads were traced. Traced routes are loaded from the source
+ * simulation's cache up front, or routed the first time they are read if there is no source
+ * cache. Any other route is routed when it is read and memoized in a bounded map, like
+ * LazyRouteCache, so a re-run that strays from the trace still gets exact travel times.
+ *
+ * Traced pairs are stored compressed by row: the partners of each trip, sorted, and the
+ * four travel times between each pair's endpoints as 16 bit ticks.
+ * @author Nathan P
+ *
+ */
+public class TracedRouteCache extends RouteCache {
+
+	private static final char NOT_LOADED = 0xFFFF; // Traced cell that hasn't been read or routed yet
+
+	// Trips indexed by identifier
+	private Trip[] mTrips;
+
+	// Traced pairs of trip t1 are mPartners[mRowStart[t1]] up to mPartners[mRowStart[t1 + 1]]
+	private int[] mRowStart;
+	private int[] mPartners;
+	private char[] mValues; // Four cells per pair, in the order origin-origin, origin-dest, dest-origin, dest-dest
+
+	private StripedLongCharMap mMisses;
+	private AtomicLong mMissCount;
+
+	private EndpointSnapCache mSnaps; // Each endpoint is snapped to the graph once
+
+	/**
+	 * @param trips All trips in the simulation. Identifiers must run from 0 to trips.size() - 1
+	 * @param trace Trip pairs whose routes to keep
+	 * @param source Cache to load the traced routes from, or null to route them when first read
+	 * @param missBudgetBytes Approximate memory routes outside of the trace may use
+	 */
+	public TracedRouteCache(ArrayList<Trip> trips, RouteCacheTrace trace, RouteCache source, long missBudgetBytes) {
+		super(trips.size(), TravelTimeCodec.SECONDS_5_16);
+		int numTrips = trips.size();
+		mTrips = new Trip[numTrips];
+		for(Trip t : trips) {
+			mTrips[t.getIdentifier()] = t;
+		}
+		mSnaps = new EndpointSnapCache(Routefinder.getInstance(), mTrips);
+		mMisses = new StripedLongCharMap(missBudgetBytes);
+		mMissCount = new AtomicLong();
+
+		long numPairs = trace.getPairCount();
+		if(numPairs * 4 > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Trace holds too many pairs to load: " + numPairs);
+		mRowStart = new int[numTrips + 1];
+		mPartners = new int[(int) numPairs];
+		mValues = new char[(int) numPairs * 4];
+		Arrays.fill(mValues, NOT_LOADED);
+
+		int pair = 0;
+		for(int t1 = 0; t1 < numTrips; t1++) {
+			mRowStart[t1] = pair;
+			for(int t2 = 0; t2 < numTrips; t2++) {
+				if(!trace.contains(t1, t2))
+					continue;
+				mPartners[pair] = t2;
+				if(source != null) {
+					for(int cell = 0; cell < 4; cell++) {
+						int i1 = t1 * 2 + cell / 2;
+						int i2 = t2 * 2 + cell % 2;
+						mValues[pair * 4 + cell] = (i1 == i2) ? 0 : encode(source.getDirect(i1, i2));
+					}
+				}
+				pair++;
+			}
+		}
+		mRowStart[numTrips] = pair;
+	}
+
+	@Override
+	public int getDirect(int i1, int i2) {
+		if(i1 == i2)
+			return 0;
+		int slot = findSlot(i1, i2);
+		if(slot >= 0) {
+			char value = mValues[slot];
+			if(value == NOT_LOADED) {
+				// Route outside of any lock. Two threads may race to route the
+				// same cell, which costs a duplicate query but gives the same answer
+				value = encode(route(i1, i2));
+				mValues[slot] = value;
+			}
+			return mCodec.decode(value);
+		}
+
+		long key = (long) i1 * mSize + i2;
+		int value = mMisses.get(key);
+		if(value != StripedLongCharMap.MISSING)
+			return mCodec.decode(value);
+		mMissCount.incrementAndGet();
+		char ticks = encode(route(i1, i2));
+		mMisses.put(key, ticks);
+		return mCodec.decode(ticks);
+	}
+
+	@Override
+	protected void putDirect(int i1, int i2, int travelTimeSecs) {
+		int slot = findSlot(i1, i2);
+		if(slot >= 0)
+			mValues[slot] = encode(travelTimeSecs);
+		else
+			mMisses.put((long) i1 * mSize + i2, encode(travelTimeSecs));
+	}
+
+	/**
+	 * @return Number of trip pairs held
+	 */
+	public int getPairCount() {
+		return mPartners.length;
+	}
+
+	/**
+	 * @return Number of routes read that weren't in the trace
+	 */
+	public long getMissCount() {
+		return mMissCount.get();
+	}
+
+	/**
+	 * @return Index of the cell in mValues, or -1 if its trip pair isn't traced
+	 */
+	private int findSlot(int i1, int i2) {
+		int t1 = i1 / 2;
+		int pair = Arrays.binarySearch(mPartners, mRowStart[t1], mRowStart[t1 + 1], i2 / 2);
+		if(pair < 0)
+			return -1;
+		return pair * 4 + (i1 % 2) * 2 + i2 % 2;
+	}
+
+	/**
+	 * Encodes a travel time, keeping clear of NOT_LOADED
+	 */
+	private char encode(int travelTimeSecs) {
+		return (char) Math.min(mCodec.encode(Math.max(0, travelTimeSecs)), NOT_LOADED - 1);
+	}
+
+	private int route(int i1, int i2) {
+		return mSnaps.getTravelTimeSecs(i1, i2);
+	}
+}
@@ -0,0 +1,109 @@
+package edu.pugetsound.npastor.routing;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Packs travel times into fixed width, unsigned cache cells. A cell counts ticks of a
+ * selectable resolution, so accuracy and range can be traded against the cell width.
+ * Times beyond the range of a cell are clamped to its maximum, and counted, see
+ * getClampedCount(). The highest cell value is reserved for RouteCache.UNREACHABLE.
+ * @author Nathan P
+ *
+ */
+public class TravelTimeCodec {
+
+	/** Whole minutes in one byte, up to 4h 14m. The format of the original minute caches */
+	public static final TravelTimeCodec MINUTES_8 = new TravelTimeCodec(60, 1);
+	/** 15 second ticks in one byte, up to 63m 30s. Same footprint as minute bytes */
+	public static final TravelTimeCodec SECONDS_15_8 = new TravelTimeCodec(15, 1);
+	/** 5 second ticks in two bytes, up to 91 hours */
+	public static final TravelTimeCodec SECONDS_5_16 = new TravelTimeCodec(5, 2);
+
+	/**
+	 * Used unless a cache is told otherwise. No drive in Tacoma comes near an hour. Builds
+	 * log how many times were clamped, see getClampedCount()
+	 */
+	public static final TravelTimeCodec DEFAULT = SECONDS_15_8;
+
+	private final int mResolutionSecs;
+	private final int mBytesPerCell;
+	private final int mMaxTicks; // Highest tick of a travel time
+	private final int mUnreachableTicks; // Cell value of RouteCache.UNREACHABLE
+	private final AtomicLong mClamped = new AtomicLong();
+
+	/**
+	 * @param resolutionSecs Seconds per tick
+	 * @param bytesPerCell Cell width, 1 or 2 bytes
+	 */
+	public TravelTimeCodec(int resolutionSecs, int bytesPerCell) {
+		if(resolutionSecs < 1)
+			throw new IllegalArgumentException("Resolution must be at least 1 second, was " + resolutionSecs);
+		if(bytesPerCell != 1 && bytesPerCell != 2)
+			throw new IllegalArgumentException("Cells must be 1 or 2 bytes wide, were " + bytesPerCell);
+		mResolutionSecs = resolutionSecs;
+		mBytesPerCell = bytesPerCell;
+		mUnreachableTicks = (1 << (8 * bytesPerCell)) - 1;
+		mMaxTicks = mUnreachableTicks - 1;
+	}
+
+	/**
+	 * @param travelTimeSecs A non-negative travel time in seconds, or RouteCache.UNREACHABLE
+	 * @return The travel time in ticks, rounded to the nearest tick and clamped to the cell range
+	 */
+	public int encode(int travelTimeSecs) {
+		if(travelTimeSecs == RouteCache.UNREACHABLE)
+			return mUnreachableTicks;
+		if(travelTimeSecs < 0)
+			throw new IllegalArgumentException("Travel times can't be negative, was " + travelTimeSecs);
+		int ticks = (travelTimeSecs + mResolutionSecs / 2) / mResolutionSecs;
+		if(ticks > mMaxTicks) {
+			mClamped.incrementAndGet();
+			return mMaxTicks;
+		}
+		return ticks;
+	}
+
+	/**
+	 * @param ticks A cell value
+	 * @return The travel time in seconds, or RouteCache.UNREACHABLE
+	 */
+	public int decode(int ticks) {
+		if(ticks == mUnreachableTicks)
+			return RouteCache.UNREACHABLE;
+		return ticks * mResolutionSecs;
+	}
+
+	/**
+	 * @return Number of travel times clamped to the cell range by any cache using this codec
+	 */
+	public long getClampedCount() {
+		return mClamped.get();
+	}
+
+	/**
+	 * @return Longest travel time a cell can hold, in seconds
+	 */
+	public int getMaxSecs() {
+		return mMaxTicks * mResolutionSecs;
+	}
+
+	public int getResolutionSecs() {
+		return mResolutionSecs;
+	}
+
+	public int getBytesPerCell() {
+		return mBytesPerCell;
+	}
+
+	/**
+	 * @return log2 of the cell width, for turning cell indices into byte offsets
+	 */
+	int getCellShift() {
+		return mBytesPerCell == 1 ? 0 : 1;
+	}
+
+	@Override
+	public String toString() {
+		return mResolutionSecs + "s ticks in " + mBytesPerCell + " byte(s)";
+	}
+}
@@ -0,0 +1,400 @@
+package edu.pugetsound.npastor.routing;
+
+import java.awt.geom.Point2D;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import edu.pugetsound.npastor.utils.Log;
+
+/**
+ * A persistent store of travel times keyed by location rather than by trip. Locations are
+ * quantized to a grid of QUANTUM degrees (about a meter), so any simulation whose trips
+ * share endpoints with an earlier one, e.g. a redistribution or a re-generated day with
+ * overlapping demand, can reuse travel times without routing them again.
+ *
+ * The store is an append-only file. New travel times are appended in batches, and the whole
+ * file is read into memory when opened. Travel times are only valid on the graph they were
+ * routed on, so a store built on a different graph is discarded.
+ *
+ * In memory, keys are spread over independently locked stripes of open addressing tables,
+ * like StripedLongCharMap, so routing threads rarely wait on each other. The store holds at
+ * most a fixed number of travel times, about 20 bytes each at half load. Once full, new
+ * travel times are routed but not stored. A file holding duplicate records, or more than
+ * the store keeps, is compacted when opened.
+ *
+ *   File layout (big-endian):
+ *   int  magic            "TDTS"
+ *   int  version          FORMAT_VERSION
+ *   long graphFingerprint See Routefinder.getGraphFingerprint()
+ *   Then records of: long from, long to, int travelTimeSecs
+ *
+ * @author Nathan P
+ *
+ */
+public class TravelTimeStore {
+
+	public static final String TAG = "TravelTimeStore";
+
+	/** Returned by get() when a travel time isn't stored */
+	public static final int MISSING = -1;
+
+	/** Travel times kept unless the store is told otherwise. About 160 MB when full */
+	public static final int DEFAULT_MAX_ENTRIES = 1 << 23;
+
+	private static final int MAGIC = 0x54445453; // "TDTS"
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_BYTES = 16;
+	private static final int RECORD_BYTES = 20;
+
+	private static final double QUANTUM = 1e-5; // Degrees
+	private static final int FLUSH_INTERVAL = 100000; // Append to file once this many times are pending
+	private static final int NUM_STRIPES = 64;
+	private static final int INITIAL_STRIPE_CAPACITY = 1 << 10;
+	private static final long EMPTY = Long.MIN_VALUE;
+
+	private String mPath;
+	private Stripe[] mStripes;
+
+	// Travel times not yet appended to the file. Guarded by mPendingLock
+	private final Object mPendingLock = new Object();
+	private long[] mPendingFrom;
+	private long[] mPendingTo;
+	private int[] mPendingSecs;
+	private int mNumPending;
+
+	/**
+	 * Opens the store at the specified path, creating it if it doesn't exist
+	 * @param path The store file
+	 * @param fingerprint Fingerprint of the graph in use
+	 * @throws IOException If the file can't be read or created
+	 */
+	public TravelTimeStore(String path, long fingerprint) throws IOException {
+		this(path, fingerprint, DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * Opens the store at the specified path, creating it if it doesn't exist
+	 * @param path The store file
+	 * @param fingerprint Fingerprint of the graph in use
+	 * @param maxEntries Most travel times to keep
+	 * @throws IOException If the file can't be read or created
+	 */
+	public TravelTimeStore(String path, long fingerprint, int maxEntries) throws IOException {
+		mPath = path;
+		int stripeEntries = Math.max(1, Math.min(maxEntries / NUM_STRIPES, 1 << 28));
+		mStripes = new Stripe[NUM_STRIPES];
+		for(int i = 0; i < NUM_STRIPES; i++) {
+			mStripes[i] = new Stripe(stripeEntries);
+		}
+		mPendingFrom = new long[FLUSH_INTERVAL];
+		mPendingTo = new long[FLUSH_INTERVAL];
+		mPendingSecs = new int[FLUSH_INTERVAL];
+
+		File file = new File(path);
+		if(file.exists() && file.length() >= HEADER_BYTES && read(fingerprint)) {
+			Log.iln(TAG, "Loaded " + size() + " travel times from " + path);
+		} else {
+			Log.iln(TAG, "Starting a new travel time store at " + path);
+			writeHeader(path, fingerprint);
+		}
+	}
+
+	/**
+	 * @param origin Route origin, long/lat
+	 * @param destination Route destination, long/lat
+	 * @return The stored travel time in seconds, or MISSING
+	 */
+	public int get(Point2D origin, Point2D destination) {
+		long from = quantize(origin);
+		long to = quantize(destination);
+		int hash = hash(from, to);
+		return getStripe(hash).get(from, to, hash);
+	}
+
+	/**
+	 * Stores a travel time. It is appended to the file with the next batch. Nothing is
+	 * stored once the store is full
+	 * @param origin Route origin, long/lat
+	 * @param destination Route destination, long/lat
+	 * @param travelTimeSecs Travel time in seconds
+	 */
+	public void put(Point2D origin, Point2D destination, int travelTimeSecs) {
+		long from = quantize(origin);
+		long to = quantize(destination);
+		int hash = hash(from, to);
+		if(!getStripe(hash).insert(from, to, hash, travelTimeSecs))
+			return;
+		synchronized(mPendingLock) {
+			mPendingFrom[mNumPending] = from;
+			mPendingTo[mNumPending] = to;
+			mPendingSecs[mNumPending] = travelTimeSecs;
+			mNumPending++;
+			if(mNumPending == FLUSH_INTERVAL) {
+				try {
+					flush();
+				} catch (IOException ex) {
+					// Drop the batch. Its travel times stay in memory for this run, but aren't saved
+					Log.e(TAG, "Unable to append to travel time store at: " + mPath + "\n  " + ex.getMessage());
+					ex.printStackTrace();
+					mNumPending = 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Appends all pending travel times to the file
+	 * @throws IOException If the file can't be written
+	 */
+	public void flush() throws IOException {
+		synchronized(mPendingLock) {
+			if(mNumPending == 0)
+				return;
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(mPath, true)));
+			try {
+				for(int i = 0; i < mNumPending; i++) {
+					out.writeLong(mPendingFrom[i]);
+					out.writeLong(mPendingTo[i]);
+					out.writeInt(mPendingSecs[i]);
+				}
+			} finally {
+				out.close();
+			}
+			mNumPending = 0;
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for(Stripe s : mStripes) {
+			synchronized(s) {
+				size += s.mSize;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return Number of lookups that found a stored travel time
+	 */
+	public long getHits() {
+		long hits = 0;
+		for(Stripe s : mStripes) {
+			synchronized(s) {
+				hits += s.mHits;
+			}
+		}
+		return hits;
+	}
+
+	/**
+	 * @return Number of lookups that found nothing
+	 */
+	public long getMisses() {
+		long misses = 0;
+		for(Stripe s : mStripes) {
+			synchronized(s) {
+				misses += s.mMisses;
+			}
+		}
+		return misses;
+	}
+
+	/**
+	 * Packs a location's quantized latitude and longitude into a long
+	 */
+	private static long quantize(Point2D location) {
+		long lat = Math.round(location.getY() / QUANTUM);
+		long lon = Math.round(location.getX() / QUANTUM);
+		return (lat << 32) | (lon & 0xFFFFFFFFL);
+	}
+
+	private static int hash(long from, long to) {
+		long h = (from * 0x9E3779B97F4A7C15L) ^ to;
+		h *= 0xC2B2AE3D27D4EB4FL;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	// The top 6 bits of the hash pick the stripe, the low bits the slot
+	private Stripe getStripe(int hash) {
+		return mStripes[hash >>> 26];
+	}
+
+	private static void writeHeader(String path, long fingerprint) throws IOException {
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(path));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeLong(fingerprint);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads the store file into the table, compacting the file if it holds records the
+	 * table didn't keep
+	 * @return True if the file was read, false if it belongs to another graph or isn't a store
+	 */
+	private boolean read(long fingerprint) throws IOException {
+		long length = new File(mPath).length();
+		long numRecords = (length - HEADER_BYTES) / RECORD_BYTES;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mPath)));
+		try {
+			if(in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+				return false;
+			if(in.readLong() != fingerprint) {
+				Log.iln(TAG, "Travel time store was built on a different graph, discarding it");
+				return false;
+			}
+			for(long i = 0; i < numRecords; i++) {
+				long from = in.readLong();
+				long to = in.readLong();
+				int secs = in.readInt();
+				int hash = hash(from, to);
+				getStripe(hash).insert(from, to, hash, secs);
+			}
+		} finally {
+			in.close();
+		}
+
+		if(numRecords > size()) {
+			compact(fingerprint, numRecords);
+		} else if(HEADER_BYTES + numRecords * RECORD_BYTES != length) {
+			// An interrupted append can leave a partial record at the end. Drop it so
+			// new records line up again
+			RandomAccessFile file = new RandomAccessFile(mPath, "rw");
+			try {
+				file.setLength(HEADER_BYTES + numRecords * RECORD_BYTES);
+			} finally {
+				file.close();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Rewrites the file with only the travel times in the table, dropping duplicates and
+	 * those over the limit. The new file replaces the old one once it's complete
+	 */
+	private void compact(long fingerprint, long numRecords) throws IOException {
+		String tempPath = mPath + ".compact";
+		writeHeader(tempPath, fingerprint);
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tempPath, true)));
+		try {
+			for(Stripe s : mStripes) {
+				synchronized(s) {
+					for(int slot = 0; slot < s.mFrom.length; slot++) {
+						if(s.mFrom[slot] == EMPTY)
+							continue;
+						out.writeLong(s.mFrom[slot]);
+						out.writeLong(s.mTo[slot]);
+						out.writeInt(s.mSecs[slot]);
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+		File file = new File(mPath);
+		if(!file.delete() || !new File(tempPath).renameTo(file))
+			throw new IOException("Unable to replace " + mPath + " with its compacted copy");
+		Log.iln(TAG, "Compacted travel time store from " + numRecords + " to " + size() + " records");
+	}
+
+	/**
+	 * One independently locked linear probing table, grown as needed up to its limit
+	 */
+	private static class Stripe {
+
+		// mFrom[i] == EMPTY marks a free slot
+		private long[] mFrom;
+		private long[] mTo;
+		private int[] mSecs;
+		private int mSize;
+		private int mMaxEntries;
+		private long mHits;
+		private long mMisses;
+
+		Stripe(int maxEntries) {
+			mMaxEntries = maxEntries;
+			allocate(Math.min(INITIAL_STRIPE_CAPACITY, Integer.highestOneBit(maxEntries) << 1));
+		}
+
+		synchronized int get(long from, long to, int hash) {
+			int slot = find(from, to, hash);
+			if(slot < 0) {
+				mMisses++;
+				return MISSING;
+			}
+			mHits++;
+			return mSecs[slot];
+		}
+
+		/**
+		 * @return True if the travel time was added, false if it was already stored or the stripe is full
+		 */
+		synchronized boolean insert(long from, long to, int hash, int travelTimeSecs) {
+			if(mSize >= mMaxEntries || find(from, to, hash) >= 0)
+				return false;
+			if((mSize + 1) * 2 > mFrom.length)
+				grow();
+			put(from, to, hash, travelTimeSecs);
+			return true;
+		}
+
+		/**
+		 * @return The slot holding the key, or -1 if it isn't stored
+		 */
+		private int find(long from, long to, int hash) {
+			int mask = mFrom.length - 1;
+			int slot = hash & mask;
+			while(mFrom[slot] != EMPTY) {
+				if(mFrom[slot] == from && mTo[slot] == to)
+					return slot;
+				slot = (slot + 1) & mask;
+			}
+			return -1;
+		}
+
+		private void put(long from, long to, int hash, int travelTimeSecs) {
+			int mask = mFrom.length - 1;
+			int slot = hash & mask;
+			while(mFrom[slot] != EMPTY)
+				slot = (slot + 1) & mask;
+			mFrom[slot] = from;
+			mTo[slot] = to;
+			mSecs[slot] = travelTimeSecs;
+			mSize++;
+		}
+
+		private void allocate(int capacity) {
+			mFrom = new long[capacity];
+			mTo = new long[capacity];
+			mSecs = new int[capacity];
+			Arrays.fill(mFrom, EMPTY);
+			mSize = 0;
+		}
+
+		private void grow() {
+			long[] from = mFrom;
+			long[] to = mTo;
+			int[] secs = mSecs;
+			allocate(from.length * 2);
+			for(int i = 0; i < from.length; i++) {
+				if(from[i] != EMPTY)
+					put(from[i], to[i], hash(from[i], to[i]), secs[i]);
+			}
+		}
+	}
+}
@@ -26,8 +26,8 @@ public class VehicleScheduleJob implements Comparable<VehicleScheduleJob>, Clone
 	private Trip mTrip;
 	private int mStartTime;
 	private int mDuration;
-	private int mPlannedServiceTime;
-	private int mTimeToNextJob;
+	private int mPlannedServiceTimeSecs; // Service times and legs are kept in seconds, so
+	private int mTimeToNextJobSecs;      // that sub-minute legs don't round away as they add up
 	private VehicleScheduleJob mNextJob;
 	private Point2D mLocation;
 	private int mWaitTime;
@@ -38,9 +38,9 @@ public class VehicleScheduleJob implements Comparable<VehicleScheduleJob>, Clone
 	// respective schedules. With these arrays, we can avoid cloning
 	// VehicleScheduleJob objects into new lists every time we start
 	// a new thread
-	private int[] mWorkingTimesToNextJob;
+	private int[] mWorkingTimesToNextJobSecs;
 	private VehicleScheduleJob[] mWorkingNextJobs;
-	private int[] mWorkingServiceTimes;
+	private int[] mWorkingServiceTimesSecs;
 	private int[] mWorkingWaitTimes;
 	
 	public VehicleScheduleJob(Trip trip, Point2D location, int startTime, 
@@ -50,13 +50,13 @@ public class VehicleScheduleJob implements Comparable<VehicleScheduleJob>, Clone
 		mStartTime = startTime;
 		mDuration = duration;
 		mType = type;
-		mPlannedServiceTime = startTime;
+		mPlannedServiceTimeSecs = startTime * 60;
 		mLocation = location;
 		mWaitTime = 0;
 		mWorkingWaitTimes = new int[numVehicles];
-		mWorkingTimesToNextJob = new int[numVehicles];
+		mWorkingTimesToNextJobSecs = new int[numVehicles];
 		mWorkingNextJobs = new VehicleScheduleJob[numVehicles];
-		mWorkingServiceTimes = new int[numVehicles];
+		mWorkingServiceTimesSecs = new int[numVehicles];
 	}
 	
 	public void setCorrespondingJob(VehicleScheduleJob corrJob) {
@@ -67,10 +67,19 @@ public class VehicleScheduleJob implements Comparable<VehicleScheduleJob>, Clone
 	 * Sets the working service time for the specified vehicle index
 	 * to the specified value
 	 * @param vehicleIndex Vehicle index
-	 * @param value Working service time for specified vehicle index
+	 * @param value Working service time for specified vehicle index, in minutes
 	 */
 	public void setWorkingServiceTime(int vehicleIndex, int value) {
-		mWorkingServiceTimes[vehicleIndex] = value;
+		mWorkingServiceTimesSecs[vehicleIndex] = value * 60;
+	}
+
+	/**
+	 * Sets the working service time for the specified vehicle index
+	 * @param vehicleIndex Vehicle index
+	 * @param valueSecs Working service time for specified vehicle index, in seconds
+	 */
+	public void setWorkingServiceTimeSecs(int vehicleIndex, int valueSecs) {
+		mWorkingServiceTimesSecs[vehicleIndex] = valueSecs;
 	}
 	
 	public void setNextJob(int vehicleIndex, VehicleScheduleJob nextJob) {
@@ -81,14 +90,18 @@ public class VehicleScheduleJob implements Comparable<VehicleScheduleJob>, Clone
 	}
 	
 	public void setServiceTime(int serviceTime) {
-		mPlannedServiceTime = serviceTime;
+		mPlannedServiceTimeSecs = serviceTime * 60;
+	}
+
+	public void setServiceTimeSecs(int serviceTimeSecs) {
+		mPlannedServiceTimeSecs = serviceTimeSecs;
 	}
 	
-	public void setTimeToNextJob(int vehicleIndex, int timeMins) {
+	public void setTimeToNextJobSecs(int vehicleIndex, int timeSecs) {
 		if(vehicleIndex < 0)
-			mTimeToNextJob = timeMins;
+			mTimeToNextJobSecs = timeSecs;
 		else
-			mWorkingTimesToNextJob[vehicleIndex] = timeMins;
+			mWorkingTimesToNextJobSecs[vehicleIndex] = timeSecs;
 	}
 	
 	public void setWaitTime(int vehicleIndex, int waitTime) {
@@ -124,19 +137,29 @@ public class VehicleScheduleJob implements Comparable<VehicleScheduleJob>, Clone
 			return mWorkingWaitTimes[vehicleIndex];
 	}
 	
+	/**
+	 * @return Working service time for the specified vehicle index, in whole minutes
+	 */
 	public int getWorkingServiceTime(int vehicleNum) {
-		return mWorkingServiceTimes[vehicleNum];
+		return mWorkingServiceTimesSecs[vehicleNum] / 60;
+	}
+
+	public int getWorkingServiceTimeSecs(int vehicleNum) {
+		return mWorkingServiceTimesSecs[vehicleNum];
 	}
 	
 	public Point2D getLocation() {
 		return mLocation;
 	}
 	
-	public int getTimeToNextJob(int vehicleIndex) {
+	/**
+	 * @return Travel time to the next job in seconds, or RouteCache.UNREACHABLE
+	 */
+	public int getTimeToNextJobSecs(int vehicleIndex) {
 		if(vehicleIndex < 0)
-			return mTimeToNextJob;
+			return mTimeToNextJobSecs;
 		else
-			return mWorkingTimesToNextJob[vehicleIndex];
+			return mWorkingTimesToNextJobSecs[vehicleIndex];
 	}
 	
 	public int getType() {
@@ -159,8 +182,15 @@ public class VehicleScheduleJob implements Comparable<VehicleScheduleJob>, Clone
 		return mDuration;
 	}
 	
+	/**
+	 * @return Planned service time, in whole minutes
+	 */
 	public int getServiceTime() {
-		return mPlannedServiceTime;
+		return mPlannedServiceTimeSecs / 60;
+	}
+
+	public int getServiceTimeSecs() {
+		return mPlannedServiceTimeSecs;
 	}
 	
 	public VehicleScheduleJob getCorrespondingJob() {
@@ -205,11 +235,11 @@ public class VehicleScheduleJob implements Comparable<VehicleScheduleJob>, Clone
 	public String toString(int workingServiceIndex) {
 		int time;
 		if(mType == JOB_TYPE_START || mType == JOB_TYPE_END)
-			time = mPlannedServiceTime;
+			time = getServiceTime();
 		else if(workingServiceIndex < 0)
-			time = mPlannedServiceTime;
+			time = getServiceTime();
 		else 
-			time = mWorkingServiceTimes[workingServiceIndex];  
+			time = getWorkingServiceTime(workingServiceIndex);  
 		
 		String str = "Job type: " + mType + ". Start time: " + DRTUtils.minsToHrMin(mStartTime)
 					+ ". Service time: " + DRTUtils.minsToHrMin(time);
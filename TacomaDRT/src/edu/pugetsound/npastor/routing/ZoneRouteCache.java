@@ -0,0 +1,45 @@
+package edu.pugetsound.npastor.routing;
+
+import java.util.ArrayList;
+
+import edu.pugetsound.npastor.utils.Trip;
+
+/**
+ * An approximate route cache. Travel times come from a ZoneTravelTimes table instead of
+ * routing each endpoint pair, so there is no per-trip routing at all. Each time is off
+ * by about the table's error estimate for the endpoints' zones, see
+ * ZoneTravelTimes.getErrorEstimateSecs()
+ * @author Nathan P
+ *
+ */
+public class ZoneRouteCache extends RouteCache {
+
+	private ZoneTravelTimes mZones;
+	private int[] mZoneOf; // Zone of every endpoint, indexed by cache row
+
+	/**
+	 * @param trips All trips in the simulation. Identifiers must run from 0 to trips.size() - 1
+	 * @param zones The zone table
+	 */
+	public ZoneRouteCache(ArrayList<Trip> trips, ZoneTravelTimes zones) {
+		super(trips.size(), TravelTimeCodec.DEFAULT);
+		mZones = zones;
+		mZoneOf = new int[mSize];
+		for(Trip t : trips) {
+			mZoneOf[hash(t.getIdentifier(), true)] = zones.getZone(t.getOriginPoint());
+			mZoneOf[hash(t.getIdentifier(), false)] = zones.getZone(t.getDestinationPoint());
+		}
+	}
+
+	@Override
+	public int getDirect(int i1, int i2) {
+		if(i1 == i2)
+			return 0;
+		return mZones.getApproxSecs(mZoneOf[i1], mZoneOf[i2]);
+	}
+
+	@Override
+	protected void putDirect(int i1, int i2, int travelTimeSecs) {
+		throw new UnsupportedOperationException("Zone travel times are fixed");
+	}
+}
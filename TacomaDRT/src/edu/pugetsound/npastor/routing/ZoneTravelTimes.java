@@ -0,0 +1,308 @@
+package edu.pugetsound.npastor.routing;
+
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import edu.pugetsound.npastor.utils.Log;
+
+/**
+ * Approximate travel times between zones of a uniform grid over the service area. Only
+ * zone centers are routed, so the table takes a few thousand queries no matter how many
+ * trips there are, and it only needs rebuilding when the street graph changes. A zone whose
+ * center doesn't snap to the street graph, e.g. one on water, is routed from the first of
+ * its samples that does instead. Samples that don't snap or route are skipped.
+ *
+ * Every zone also has an inbound and outbound radius: the longest drive from any sampled
+ * point in the zone to its center, and from the center back out. By the triangle inequality,
+ * the drive from a point in zone A to a point in zone B would be within
+ *   center(A -> B) - out(A) - in(B)   and   center(A -> B) + in(A) + out(B)
+ * if the radii were exact. They are only sampled, and padded by RADIUS_MARGIN, so these
+ * are estimates rather than guaranteed bounds. Drives between unsampled points, or read
+ * from a rounded route cache, can fall outside them.
+ *
+ *   File layout (big-endian):
+ *   int    magic          "TDZT"
+ *   int    version        FORMAT_VERSION
+ *   int    gridSize       Zones per side
+ *   double minX, minY, maxX, maxY   Grid bounds, long/lat
+ *   long   graphFingerprint See Routefinder.getGraphFingerprint()
+ *   int[]  center times, zone major, NOT_FOUND if no route connects the centers.
+ *          Then inbound radii, then outbound radii. All seconds
+ *
+ * @author Nathan P
+ *
+ */
+public class ZoneTravelTimes {
+
+	public static final String TAG = "ZoneTravelTimes";
+
+	private static final int MAGIC = 0x54445a54; // "TDZT"
+	private static final int FORMAT_VERSION = 2;
+	private static final int NOT_FOUND = -1; // Center time of zones no route connects
+
+	private static final float RADIUS_MARGIN = 1.25f; // Padding on sampled radii
+	private static final int SAMPLES_PER_SIDE = 3; // Radius samples are a grid of this many points per side
+
+	private int mGridSize;
+	private double mMinX;
+	private double mMinY;
+	private double mCellWidth;
+	private double mCellHeight;
+	private Rectangle2D mBounds;
+
+	private int[] mCenterSecs; // Indexed by fromZone * numZones + toZone
+	private int[] mInRadiusSecs;
+	private int[] mOutRadiusSecs;
+	private int mMaxCenterSecs; // Longest center time that was found
+
+	private ZoneTravelTimes(Rectangle2D bounds, int gridSize) {
+		mBounds = bounds;
+		mGridSize = gridSize;
+		mMinX = bounds.getMinX();
+		mMinY = bounds.getMinY();
+		mCellWidth = bounds.getWidth() / gridSize;
+		mCellHeight = bounds.getHeight() / gridSize;
+		int numZones = gridSize * gridSize;
+		mCenterSecs = new int[numZones * numZones];
+		mInRadiusSecs = new int[numZones];
+		mOutRadiusSecs = new int[numZones];
+	}
+
+	/**
+	 * Loads the zone table from file if it was built for this grid and graph, otherwise
+	 * builds it and writes it to file for the next run
+	 * @param path The zone table file
+	 * @param bounds Area the grid covers, long/lat
+	 * @param gridSize Zones per side
+	 * @param fingerprint Fingerprint of the graph in use
+	 * @return The zone table
+	 */
+	public static ZoneTravelTimes loadOrBuild(String path, Rectangle2D bounds, int gridSize, long fingerprint) {
+		if(new File(path).exists()) {
+			try {
+				ZoneTravelTimes zones = read(path, bounds, gridSize, fingerprint);
+				Log.iln(TAG, "Loaded zone travel times from " + path);
+				return zones;
+			} catch (IOException ex) {
+				Log.iln(TAG, "Rebuilding zone travel times. " + ex.getMessage());
+			}
+		}
+
+		ZoneTravelTimes zones = build(bounds, gridSize);
+		try {
+			zones.write(path, fingerprint);
+		} catch (IOException ex) {
+			Log.e(TAG, "Unable to write zone travel times to: " + path + "\n  " + ex.getMessage());
+			ex.printStackTrace();
+		}
+		return zones;
+	}
+
+	/**
+	 * Routes every pair of zone centers, and samples the radius of every zone
+	 * @param bounds Area the grid covers, long/lat
+	 * @param gridSize Zones per side
+	 * @return The zone table
+	 */
+	public static ZoneTravelTimes build(Rectangle2D bounds, int gridSize) {
+		ZoneTravelTimes zones = new ZoneTravelTimes(bounds, gridSize);
+		int numZones = gridSize * gridSize;
+		Log.iln(TAG, "Building zone travel times over " + numZones + " zones");
+		Routefinder router = Routefinder.getInstance();
+
+		// Graph node every zone is routed from. -1 if no sample of the zone snaps
+		int[] centers = new int[numZones];
+		for(int z = 0; z < numZones; z++) {
+			centers[z] = router.snapToNode(zones.getZoneSample(z, 0.5, 0.5));
+			for(int s = 0; s < SAMPLES_PER_SIDE * SAMPLES_PER_SIDE && centers[z] < 0; s++) {
+				centers[z] = router.snapToNode(zones.getZoneSample(z, getSampleFraction(s / SAMPLES_PER_SIDE), 
+						getSampleFraction(s % SAMPLES_PER_SIDE)));
+			}
+		}
+
+		for(int from = 0; from < numZones; from++) {
+			for(int to = 0; to < numZones; to++) {
+				if(from == to) continue;
+				RouteSummary route = router.findTravelTime(centers[from], centers[to]);
+				zones.mCenterSecs[from * numZones + to] = route.isFound() ? (int) route.getTime() : NOT_FOUND;
+			}
+
+			// Sample the zone on an evenly spaced grid, corners included
+			int in = 0;
+			int out = 0;
+			for(int sx = 0; sx < SAMPLES_PER_SIDE; sx++) {
+				for(int sy = 0; sy < SAMPLES_PER_SIDE; sy++) {
+					int sample = router.snapToNode(zones.getZoneSample(from, getSampleFraction(sx), getSampleFraction(sy)));
+					if(sample < 0 || sample == centers[from]) continue; // Off the graph, or the center itself
+					RouteSummary inRoute = router.findTravelTime(sample, centers[from]);
+					if(inRoute.isFound())
+						in = Math.max(in, (int) inRoute.getTime());
+					RouteSummary outRoute = router.findTravelTime(centers[from], sample);
+					if(outRoute.isFound())
+						out = Math.max(out, (int) outRoute.getTime());
+				}
+			}
+			zones.mInRadiusSecs[from] = (int) Math.ceil(in * RADIUS_MARGIN);
+			zones.mOutRadiusSecs[from] = (int) Math.ceil(out * RADIUS_MARGIN);
+		}
+		zones.findMaxCenterSecs();
+		return zones;
+	}
+
+	/**
+	 * @return Fraction of the zone width or height of the sample at the index
+	 */
+	private static double getSampleFraction(int index) {
+		return (double) index / (SAMPLES_PER_SIDE - 1);
+	}
+
+	private void findMaxCenterSecs() {
+		mMaxCenterSecs = 0;
+		for(int secs : mCenterSecs)
+			mMaxCenterSecs = Math.max(mMaxCenterSecs, secs);
+	}
+
+	/**
+	 * @param location A point, long/lat. Points off the grid belong to the nearest edge zone
+	 * @return The zone the point belongs to
+	 */
+	public int getZone(Point2D location) {
+		int col = (int) ((location.getX() - mMinX) / mCellWidth);
+		int row = (int) ((location.getY() - mMinY) / mCellHeight);
+		col = Math.max(0, Math.min(mGridSize - 1, col));
+		row = Math.max(0, Math.min(mGridSize - 1, row));
+		return row * mGridSize + col;
+	}
+
+	/**
+	 * @return Approximate travel time in seconds between points in the specified zones. The
+	 *         longest center time on the grid if no route connects the zones' centers
+	 */
+	public int getApproxSecs(int fromZone, int toZone) {
+		if(fromZone == toZone)
+			return (mInRadiusSecs[fromZone] + mOutRadiusSecs[fromZone]) / 2;
+		int secs = mCenterSecs[fromZone * getZoneCount() + toZone];
+		return secs == NOT_FOUND ? mMaxCenterSecs : secs;
+	}
+
+	/**
+	 * @return Estimate of the shortest drive in seconds between points in the specified zones.
+	 *         Not guaranteed to be shorter than every such drive, see the class comment
+	 */
+	public int getMinEstimateSecs(int fromZone, int toZone) {
+		int secs = mCenterSecs[fromZone * getZoneCount() + toZone];
+		if(fromZone == toZone || secs == NOT_FOUND)
+			return 0;
+		return Math.max(0, secs - mOutRadiusSecs[fromZone] - mInRadiusSecs[toZone]);
+	}
+
+	/**
+	 * @return Estimate of the shortest drive in seconds between the zones of the specified points
+	 */
+	public int getMinEstimateSecs(Point2D from, Point2D to) {
+		return getMinEstimateSecs(getZone(from), getZone(to));
+	}
+
+	/**
+	 * @return Estimate of how far getApproxSecs() may be off, in seconds, for points in the
+	 *         specified zones. Drives between unsampled points can be off by more
+	 */
+	public int getErrorEstimateSecs(int fromZone, int toZone) {
+		if(fromZone == toZone)
+			return Math.max(mInRadiusSecs[fromZone], mOutRadiusSecs[fromZone]);
+		return Math.max(mOutRadiusSecs[fromZone] + mInRadiusSecs[toZone],
+				mInRadiusSecs[fromZone] + mOutRadiusSecs[toZone]);
+	}
+
+	/**
+	 * @return Largest getErrorEstimateSecs() anywhere on the grid, in seconds
+	 */
+	public int getMaxErrorEstimateSecs() {
+		int maxIn = 0;
+		int maxOut = 0;
+		for(int z = 0; z < getZoneCount(); z++) {
+			maxIn = Math.max(maxIn, mInRadiusSecs[z]);
+			maxOut = Math.max(maxOut, mOutRadiusSecs[z]);
+		}
+		return maxIn + maxOut;
+	}
+
+	public int getZoneCount() {
+		return mGridSize * mGridSize;
+	}
+
+	/**
+	 * @param fx Fraction of the zone width from its west edge
+	 * @param fy Fraction of the zone height from its south edge
+	 * @return A point in the zone, long/lat
+	 */
+	private Point2D getZoneSample(int zone, double fx, double fy) {
+		int row = zone / mGridSize;
+		int col = zone % mGridSize;
+		return new Point2D.Double(mMinX + (col + fx) * mCellWidth, mMinY + (row + fy) * mCellHeight);
+	}
+
+	// **************************************
+	//               FILE I/O
+	// **************************************
+
+	private void write(String path, long fingerprint) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(mGridSize);
+			out.writeDouble(mBounds.getMinX());
+			out.writeDouble(mBounds.getMinY());
+			out.writeDouble(mBounds.getMaxX());
+			out.writeDouble(mBounds.getMaxY());
+			out.writeLong(fingerprint);
+			for(int secs : mCenterSecs)
+				out.writeInt(secs);
+			for(int secs : mInRadiusSecs)
+				out.writeInt(secs);
+			for(int secs : mOutRadiusSecs)
+				out.writeInt(secs);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static ZoneTravelTimes read(String path, Rectangle2D bounds, int gridSize, long fingerprint) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+		try {
+			if(in.readInt() != MAGIC)
+				throw new IOException("Not a zone travel time file: " + path);
+			int version = in.readInt();
+			if(version != FORMAT_VERSION)
+				throw new IOException("Unsupported zone file version " + version + " at: " + path);
+			if(in.readInt() != gridSize)
+				throw new IOException("Zone file was built with a different grid size");
+			if(in.readDouble() != bounds.getMinX() || in.readDouble() != bounds.getMinY()
+					|| in.readDouble() != bounds.getMaxX() || in.readDouble() != bounds.getMaxY())
+				throw new IOException("Zone file was built over a different area");
+			if(in.readLong() != fingerprint)
+				throw new IOException("Zone file was built on a different graph");
+
+			ZoneTravelTimes zones = new ZoneTravelTimes(bounds, gridSize);
+			for(int i = 0; i < zones.mCenterSecs.length; i++)
+				zones.mCenterSecs[i] = in.readInt();
+			for(int i = 0; i < zones.mInRadiusSecs.length; i++)
+				zones.mInRadiusSecs[i] = in.readInt();
+			for(int i = 0; i < zones.mOutRadiusSecs.length; i++)
+				zones.mOutRadiusSecs[i] = in.readInt();
+			zones.findMaxCenterSecs();
+			return zones;
+		} finally {
+			in.close();
+		}
+	}
+}
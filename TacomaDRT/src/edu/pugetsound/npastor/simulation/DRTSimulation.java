@@ -3,15 +3,18 @@ package edu.pugetsound.npastor.simulation;
 import java.awt.geom.Point2D;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.PriorityQueue;
 import java.util.Scanner;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.feature.DefaultFeatureCollection;
@@ -30,15 +33,37 @@ import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.Point;
 
 import edu.pugetsound.npastor.TacomaDRTMain;
+import edu.pugetsound.npastor.riderGen.CityBoundaryShp;
+import edu.pugetsound.npastor.routing.CompressedRouteCacheFile;
+import edu.pugetsound.npastor.routing.InstrumentedRouteCache;
+import edu.pugetsound.npastor.routing.LazyRouteCache;
+import edu.pugetsound.npastor.routing.NodeRouteCache;
+import edu.pugetsound.npastor.routing.NodeRoutefinderTask;
+import edu.pugetsound.npastor.routing.ProgressiveRouteCache;
 import edu.pugetsound.npastor.routing.Rebus;
 import edu.pugetsound.npastor.routing.Rebus.RebusResults;
 import edu.pugetsound.npastor.routing.Rebus.RejectedTrip;
+import edu.pugetsound.npastor.routing.RemappedRouteCache;
 import edu.pugetsound.npastor.routing.RouteCache;
 import edu.pugetsound.npastor.routing.RouteCache.RouteCacheBuilder;
+import edu.pugetsound.npastor.routing.RouteCacheCheckpoint;
+import edu.pugetsound.npastor.routing.RouteCacheExtender;
+import edu.pugetsound.npastor.routing.RouteCacheFile;
+import edu.pugetsound.npastor.routing.RouteCacheScheduler;
+import edu.pugetsound.npastor.routing.RouteCacheShardFile;
+import edu.pugetsound.npastor.routing.RouteCacheTrace;
 import edu.pugetsound.npastor.routing.Routefinder;
-import edu.pugetsound.npastor.routing.RoutefinderTask;
+import edu.pugetsound.npastor.routing.SparseRouteCache;
+import edu.pugetsound.npastor.routing.SparseRoutefinderTask;
+import edu.pugetsound.npastor.routing.TiledRouteCache;
+import edu.pugetsound.npastor.routing.TiledRouteCacheFile;
+import edu.pugetsound.npastor.routing.TracedRouteCache;
+import edu.pugetsound.npastor.routing.TravelTimeCodec;
+import edu.pugetsound.npastor.routing.TravelTimeStore;
 import edu.pugetsound.npastor.routing.Vehicle;
 import edu.pugetsound.npastor.routing.VehicleScheduleJob;
+import edu.pugetsound.npastor.routing.ZoneRouteCache;
+import edu.pugetsound.npastor.routing.ZoneTravelTimes;
 import edu.pugetsound.npastor.utils.Constants;
 import edu.pugetsound.npastor.utils.DRTUtils;
 import edu.pugetsound.npastor.utils.Log;
@@ -63,12 +88,53 @@ public class DRTSimulation {
 											//| Rebus.NEW_VEHICLE_ON_REJECTION;
 										   //| Rebus.CENTROID_DEVIATION_JOB_COST;
 	
+	// Route cache modes
+	/** Route every trip endpoint pair before the simulation starts */
+	public static final int CACHE_PRECOMPUTED = 0;
+	/** Route pairs the first time REBUS reads them. Nothing is written to file */
+	public static final int CACHE_LAZY = 1;
+	/** Route only pairs whose service times could make them adjacent. Nothing is written to file */
+	public static final int CACHE_SPARSE = 2;
+	/** Like CACHE_PRECOMPUTED, but endpoints snapping to the same graph node are routed once */
+	public static final int CACHE_NODE_DEDUP = 3;
+	/** Approximate every route with zone to zone travel times. Nothing is routed per trip or written to file */
+	public static final int CACHE_APPROXIMATE = 4;
+	/** Like CACHE_PRECOMPUTED, but the cache is read from disk a tile at a time. For matrices bigger than memory */
+	public static final int CACHE_TILED = 5;
+	/** Like CACHE_PRECOMPUTED, but the cache is held in memory at 4 bits per cell. See RouteCache.BACKEND_NIBBLE */
+	public static final int CACHE_NIBBLE = 6;
+	/** Like CACHE_PRECOMPUTED, but routed in call in order while the simulation runs. See ProgressiveRouteCache */
+	public static final int CACHE_PROGRESSIVE = 7;
+	
+	// Route cache settings. Re-runs always use the source simulation's cache
+	private static final int CACHE_MODE = CACHE_PRECOMPUTED;
+	private static final long LAZY_CACHE_BUDGET_MB = 1024; // Memory available to memoized lazy cache cells
+	private static final int SPARSE_CACHE_HORIZON_MINS = 60; // Must exceed the longest drive in the service area
+	private static final long TILED_CACHE_BUDGET_MB = 4096; // Memory available to resident tiles of a tiled cache
+	private static final int TILE_PREFETCH_HORIZON_MINS = 90; // Prefetch tiles of trips picked up this far ahead
+	private static final TravelTimeCodec NIBBLE_CACHE_CODEC = TravelTimeCodec.MINUTES_8; // Ticks of a nibble cell
+	private static final boolean ZONE_PRESCREEN = false; // Reject hopeless insertions using zone travel times. Approximate, may change results
+	private static final int ZONE_GRID_SIZE = 8; // Zones per side of the grid over the city
+	private static final boolean USE_TRAVEL_TIME_STORE = false; // Reuse travel times routed by earlier simulations. Bounded, see TravelTimeStore
+	private static final boolean ARCHIVE_COMPRESSED_CACHE = false; // Replace the cache file with a compressed one when done. Re-runs lose the mapped file
+	private static final boolean INSTRUMENT_CACHE = false; // Count cache reads and write them to a histogram file
+	private static final boolean RECORD_CACHE_TRACE = false; // Save which trip pairs' routes were read, for traced re-runs
+	private static final boolean USE_CACHE_TRACE = false; // Re-runs load only the routes the source simulation traced
+	private static final int CACHE_TRACE_MARGIN_MINS = 15; // Also load routes between traced trips picked up this close
+	
 	private ArrayList<Trip> mTrips;
 	private PriorityQueue<SimEvent> mEventQueue;
 	private Vehicle[] mVehiclePlans;
 	private Rebus mRebus;
 	private boolean mFromFile;
 	private RouteCache mCache;
+	private long mGraphFingerprint; // Of the street graph the cache was built on
+	private boolean mCacheLinked; // This simulation's cache file is the source simulation's, linked or copied as is
+	private Trip[] mTripsByPickup; // Ordered by pickup time, for tile prefetching
+	private int mPrefetchStart; // First trip in mTripsByPickup not yet picked up
+	private InstrumentedRouteCache mCacheAccess; // Records the scheduler's cache reads, if INSTRUMENT_CACHE or RECORD_CACHE_TRACE
+	private ZoneTravelTimes mZones;
+	private TravelTimeStore mTravelTimeStore;
 	private ArrayList<RejectedTrip> mRejectedTrips;
 	private int mTotalTrips;
 
@@ -92,7 +158,14 @@ public class DRTSimulation {
 		if(mCache == null) {
 			throw new IllegalStateException("Cache has not been instantiated. Call buildCache() before runSimulation()");
 		}
-		mRebus = new Rebus(mCache, REBUS_HINTS);
+		RouteCache cache = mCache;
+		if(INSTRUMENT_CACHE || RECORD_CACHE_TRACE) {
+			mCacheAccess = new InstrumentedRouteCache(mCache);
+			cache = mCacheAccess;
+		}
+		mRebus = new Rebus(cache, REBUS_HINTS);
+		if(ZONE_PRESCREEN)
+			mRebus.setZoneTravelTimes(mZones);
 		mRebus.printEnabledHints();
 		
 		// If a file path is specified, parse out the number of vehicles to generate
@@ -137,6 +210,8 @@ public class DRTSimulation {
 		while(!mEventQueue.isEmpty()) {
 			SimEvent nextEvent = mEventQueue.poll();
 			int nextTime = nextEvent.getTimeMins();
+			if(nextTime != lastTime && mCache instanceof TiledRouteCache)
+				prefetchTiles((TiledRouteCache) mCache, nextTime);
 			switch(nextEvent.getType()) {
 				case SimEvent.EVENT_NEW_REQUEST:
 					consumeNewRequestEvent(nextEvent, (lastTime != nextTime ? true : false));
@@ -184,6 +259,81 @@ public class DRTSimulation {
 		}
 	}
 	
+	/**
+	 * Prefetches the cache tiles holding routes between trips picked up within
+	 * TILE_PREFETCH_HORIZON_MINS of the specified time
+	 * @param cache The tiled cache
+	 * @param timeMins Current simulation time
+	 */
+	private void prefetchTiles(TiledRouteCache cache, int timeMins) {
+		if(mTripsByPickup == null) {
+			mTripsByPickup = mTrips.toArray(new Trip[mTrips.size()]);
+			Arrays.sort(mTripsByPickup, new Comparator<Trip>() {
+				@Override
+				public int compare(Trip t1, Trip t2) {
+					return t1.getPickupTime() - t2.getPickupTime();
+				}
+			});
+		}
+		while(mPrefetchStart < mTripsByPickup.length && mTripsByPickup[mPrefetchStart].getPickupTime() < timeMins)
+			mPrefetchStart++;
+
+		ArrayList<Integer> upcoming = new ArrayList<Integer>();
+		for(int i = mPrefetchStart; i < mTripsByPickup.length 
+				&& mTripsByPickup[i].getPickupTime() <= timeMins + TILE_PREFETCH_HORIZON_MINS; i++)
+			upcoming.add(mTripsByPickup[i].getIdentifier());
+		cache.prefetch(upcoming);
+	}
+	
+	/**
+	 * Writes how often the scheduler read each cache row and column, one line per trip endpoint.
+	 * The last line holds the number of distinct cells read and the size of the matrix
+	 */
+	private void writeCacheAccessFile() {
+		ArrayList<String> text = new ArrayList<String>();
+		text.add("Index" + COMMA_DELIM
+				+ "trip" + COMMA_DELIM
+				+ "endpoint" + COMMA_DELIM
+				+ "row reads" + COMMA_DELIM
+				+ "column reads" + COMMA_DELIM);
+
+		long[] rowReads = mCacheAccess.getRowAccessCounts();
+		long[] columnReads = mCacheAccess.getColumnAccessCounts();
+		long totalReads = 0;
+		for(int i = 0; i < rowReads.length; i++) {
+			text.add(i + COMMA_DELIM
+					+ (i / 2) + COMMA_DELIM
+					+ (i % 2 == 0 ? "origin" : "destination") + COMMA_DELIM
+					+ rowReads[i] + COMMA_DELIM
+					+ columnReads[i] + COMMA_DELIM);
+			totalReads += rowReads[i];
+		}
+
+		long distinct = mCacheAccess.getDistinctCellCount();
+		long cells = (long) rowReads.length * rowReads.length;
+		text.add("distinct cells read" + COMMA_DELIM + distinct + COMMA_DELIM
+				+ "of" + COMMA_DELIM + cells + COMMA_DELIM);
+		Log.iln(TAG, "Scheduler made " + totalReads + " cache reads of " + distinct + " distinct cells ("
+				+ String.format("%.2f", 100.0 * distinct / cells) + "% of the matrix)");
+
+		DRTUtils.writeTxtFile(text, Constants.CACHE_ACCESS_CSV, true);
+	}
+
+	/**
+	 * Saves the trip pairs whose routes the scheduler read, so re-runs can load just those routes
+	 */
+	private void writeCacheTraceFile() {
+		String path = TacomaDRTMain.getSimulationDirectory() + Constants.CACHE_TRACE;
+		RouteCacheTrace trace = mCacheAccess.getTrace();
+		try {
+			trace.write(path, Routefinder.getGraphFingerprint());
+			Log.iln(TAG, "Cache trace of " + trace.getPairCount() + " trip pairs written at: " + path);
+		} catch (IOException ex) {
+			Log.e(TAG, "Unable to write cache trace at: " + path + "\n  " + ex.getMessage());
+			ex.printStackTrace();
+		}
+	}
+	
 	/**
 	 * Contains procedures to execute when a simulation has finished running
 	 */
@@ -192,7 +342,45 @@ public class DRTSimulation {
 		Log.iln(TAG, "       SIMULATION COMPLETE");
 		Log.iln(TAG, "*************************************");
 		
+		if(mCache instanceof LazyRouteCache) {
+			LazyRouteCache lazyCache = (LazyRouteCache) mCache;
+			Log.iln(TAG, "Lazy route cache holds " + lazyCache.getMemoizedCount() + " of " 
+					+ (long) mCache.getSize() * mCache.getSize() + " routes. "
+					+ lazyCache.getEvictedCount() + " routes evicted");
+		}
+		if(INSTRUMENT_CACHE)
+			writeCacheAccessFile();
+		if(RECORD_CACHE_TRACE)
+			writeCacheTraceFile();
+		if(mCache instanceof ProgressiveRouteCache) {
+			ProgressiveRouteCache progressiveCache = (ProgressiveRouteCache) mCache;
+			Log.iln(TAG, "Progressive route cache had " + progressiveCache.getReadyCount() + " of " + mTrips.size()
+					+ " trips routed when the simulation finished. " + progressiveCache.getStallCount() 
+					+ " reads waited on their row");
+			if(progressiveCache.getError() != null)
+				Log.e(TAG, "Progressive route cache stopped routing in the background: " 
+						+ progressiveCache.getError().getMessage() + ". Remaining rows are routed as they are read");
+			// Writing the file reads, and so finishes, every row
+			writeCacheToFile(mGraphFingerprint);
+		}
+		if(mCache instanceof TracedRouteCache) {
+			TracedRouteCache tracedCache = (TracedRouteCache) mCache;
+			Log.iln(TAG, "Traced route cache held " + tracedCache.getPairCount() + " trip pairs. "
+					+ tracedCache.getMissCount() + " routes read outside of the trace were routed");
+		}
+		if(mCache instanceof TiledRouteCache) {
+			TiledRouteCache tiledCache = (TiledRouteCache) mCache;
+			Log.iln(TAG, "Tiled route cache read " + tiledCache.getTileReadCount() + " tiles from disk, "
+					+ tiledCache.getPrefetchCount() + " of them prefetched");
+			tiledCache.close();
+		}
+		// A linked cache is the source simulation's file. Compressing it again would gain nothing
+		if(ARCHIVE_COMPRESSED_CACHE && !mCacheLinked)
+			archiveCacheFile();
 		mCache = null; // deallocate the mastodon
+		mCacheAccess = null;
+		mZones = null;
+		closeTravelTimeStore(); // A lazy cache routes during the simulation, too
 		mRebus.onRebusFinished();
 		
 		for(Vehicle v : mVehiclePlans) {
@@ -398,7 +586,7 @@ public class DRTSimulation {
 	private StatsWrapper calcVehicleStats(Vehicle v) {
 		
 		ArrayList<VehicleScheduleJob> schedule = v.getSchedule();
-		Routefinder router = new Routefinder();
+		Routefinder router = Routefinder.getInstance();
 		
 		StatsWrapper result = new StatsWrapper();
 		result.numTrips = schedule.size() / 2 - 1; // Ignore start/end jobs
@@ -453,7 +641,7 @@ public class DRTSimulation {
 			
 			// Add mileage to current job
 			if(lastJob.getLocation() != null) {
-				totalMeters += router.findRoute(lastJob.getLocation(), job.getLocation()).getDistance();
+				totalMeters += router.findTravelTime(lastJob.getLocation(), job.getLocation()).getDistance();
 			}
 		}
 		
@@ -772,7 +960,7 @@ public class DRTSimulation {
 	
 	private SimpleFeatureCollection createLineShpFeatureCollection(SimpleFeatureType featureType, Vehicle v) {
 
-		Routefinder router = new Routefinder();
+		Routefinder router = Routefinder.getInstance();
 		
 		// New collection with feature type
 		SimpleFeatureCollection collection = FeatureCollections.newCollection();
@@ -821,39 +1009,391 @@ public class DRTSimulation {
 	 * the previously generated cache. Otherwise, we compute every route...
 	 */
 	public void buildCache() {
-		RouteCacheBuilder routeBuilder = new RouteCacheBuilder(mTrips.size());
+		long fingerprint = 0;
+		try {
+			fingerprint = Routefinder.getGraphFingerprint();
+		} catch (IOException ex) {
+			Log.e(TAG, "Unable to fingerprint street graph: " + ex.getMessage());
+			ex.printStackTrace();
+			System.exit(1);
+		}
+		
+		if(USE_TRAVEL_TIME_STORE)
+			openTravelTimeStore(fingerprint);
+		
+		// Zone travel times are built once per graph, and are cheap to load
+		if(ZONE_PRESCREEN || (!mFromFile && CACHE_MODE == CACHE_APPROXIMATE)) {
+			mZones = ZoneTravelTimes.loadOrBuild(Constants.FILE_BASE_DIR + Constants.ZONE_TIMES_BIN,
+					CityBoundaryShp.getInstance().getBoundingBox(), ZONE_GRID_SIZE, fingerprint);
+			Log.iln(TAG, "Zone travel times are estimated to be off by up to " + mZones.getMaxErrorEstimateSecs() + " seconds");
+		}
+		
+		mGraphFingerprint = fingerprint;
+		buildRouteCache(fingerprint);
+		writeCacheTrips();
+		flushTravelTimeStore();
+		logClampedTravelTimes(mCache.getCodec());
+	}
+	
+	/**
+	 * Records the endpoints of this simulation's trips beside its cache file, so re-runs
+	 * that reuse the cache can check it was built for their trips. See sourceTripsMatch()
+	 */
+	private void writeCacheTrips() {
+		String simDir = TacomaDRTMain.getSimulationDirectory();
+		if(!new File(simDir + Constants.ROUTE_CACHE_BIN).exists() 
+				&& !new File(simDir + Constants.ROUTE_CACHE_TILED).exists()
+				&& !new File(simDir + Constants.ROUTE_CACHE_COMPRESSED).exists())
+			return;
+		try {
+			RouteCacheFile.writeTrips(mTrips, simDir + Constants.ROUTE_CACHE_TRIPS);
+		} catch (IOException ex) {
+			Log.e(TAG, "Unable to write cache trip endpoints. " + ex.getMessage());
+			ex.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Checks that the source simulation's cache was built for the first trips of this simulation
+	 * @param sourceDir The source simulation's directory
+	 * @param sourceTrips Number of trips in the source cache
+	 * @param required True if the cache can't be trusted without its endpoints file. Simulations 
+	 *                 run before the file was written don't have one
+	 * @return False if the source's trips differ from this simulation's, or can't be checked when required
+	 */
+	private boolean sourceTripsMatch(String sourceDir, int sourceTrips, boolean required) {
+		String path = sourceDir + Constants.ROUTE_CACHE_TRIPS;
+		if(!new File(path).exists()) {
+			if(required)
+				Log.iln(TAG, "Source cache has no trip endpoints file to check it against");
+			return !required;
+		}
+		try {
+			return RouteCacheFile.tripsMatch(path, mTrips, sourceTrips);
+		} catch (IOException ex) {
+			Log.e(TAG, "Unable to read source cache trip endpoints. " + ex.getMessage());
+			ex.printStackTrace();
+			return false;
+		}
+	}
+	
+	/**
+	 * Warns if any travel times were too long for the cache's cells, and were shortened
+	 * @param codec Packing of the cache's cells
+	 */
+	private void logClampedTravelTimes(TravelTimeCodec codec) {
+		long clamped = codec.getClampedCount();
+		if(clamped > 0)
+			Log.e(TAG, clamped + " travel times were longer than the " + codec.getMaxSecs() 
+					+ " seconds a cache cell holds, and were shortened to it. Consider a wider TravelTimeCodec");
+	}
+	
+	/**
+	 * Builds the route cache according to CACHE_MODE, or loads the source simulation's cache
+	 * @param fingerprint Fingerprint of the current street graph
+	 */
+	private void buildRouteCache(long fingerprint) {
 		// If we're re-running a simulation, we can re-use the previous routes
 		if(mFromFile) {
-			buildCacheFromFile(routeBuilder);
+			String sourcePath = TacomaDRTMain.getSourceCacheDir();
+			String sourceDir = TacomaDRTMain.getSourceSimDirectory();
+			if(TacomaDRTMain.getMasterSimDirectory() != null) {
+				// The source's trips were sampled from a larger simulation. Copy their routes out of its cache
+				mCache = extractSampledCache(TacomaDRTMain.getMasterSimDirectory(), fingerprint);
+				writeCacheToFile(fingerprint);
+				return;
+			}
+			if(USE_CACHE_TRACE && new File(sourceDir + Constants.CACHE_TRACE).exists()) {
+				mCache = loadTracedCache(sourceDir, fingerprint);
+				return;
+			}
+			if(!new File(sourcePath).exists()) {
+				if(RouteCacheShardFile.listShards(sourceDir).length > 0) {
+					// The source's cache was routed in shards, see RouteCacheShardFile. Assemble them first
+					mergeCacheShards(sourceDir, sourcePath, fingerprint);
+				} else if(new File(sourceDir + Constants.ROUTE_CACHE_TILED).exists()) {
+					// Tiled caches are too large to copy. Read the source simulation's file in place
+					mCache = openTiledCacheFile(sourceDir + Constants.ROUTE_CACHE_TILED, fingerprint);
+					return;
+				} else if(new File(sourceDir + Constants.ROUTE_CACHE_COMPRESSED).exists()) {
+					// The source cache was archived. It's read a block at a time
+					mCache = openCompressedCacheFile(sourceDir + Constants.ROUTE_CACHE_COMPRESSED, fingerprint);
+					linkSourceCacheFile(sourceDir + Constants.ROUTE_CACHE_COMPRESSED, Constants.ROUTE_CACHE_COMPRESSED);
+					return;
+				} else if(new File(sourceDir + Constants.ROUTE_CACHE_MANIFEST).exists()) {
+					// The source simulation's cache build was interrupted. Finish it in this simulation's
+					// directory, so the source's output is left as it was
+					Log.iln(TAG, "Source simulation's route cache is incomplete");
+					String simDir = TacomaDRTMain.getSimulationDirectory();
+					copySourcePartialCache(sourceDir, simDir);
+					doCheckpointedRoutefinding(simDir, fingerprint);
+					mCache = mapCacheFile(simDir + Constants.ROUTE_CACHE_BIN, fingerprint);
+					return;
+				} else {
+					// Older simulations only have a csv cache. Converting it writes this
+					// simulation's cache file, so there's nothing left to write
+					mCache = convertLegacyCacheFile(fingerprint);
+					return;
+				}
+			}
+			int sourceTrips = readCacheTripCount(sourcePath);
+			if(!sourceTripsMatch(sourceDir, sourceTrips, sourceTrips < mTrips.size())) {
+				// The source's trip file was edited since its cache was built. Its travel times can't be trusted
+				Log.iln(TAG, "Source cache was built for different trips. Building a new cache");
+				doCheckpointedRoutefinding(TacomaDRTMain.getSimulationDirectory(), fingerprint);
+				mCache = mapCacheFile(TacomaDRTMain.getSimulationDirectory() + Constants.ROUTE_CACHE_BIN, fingerprint);
+				return;
+			} else if(sourceTrips < mTrips.size()) {
+				// Trips were appended to the source's trip file. Only their routes need routing
+				Log.iln(TAG, "Extending the " + sourceTrips + " trip source cache with " 
+						+ (mTrips.size() - sourceTrips) + " new trips");
+				mCache = RouteCacheExtender.extend(mapCacheFile(sourcePath, sourceTrips, fingerprint), mTrips,
+						RouteCache.BACKEND_OFF_HEAP, TacomaDRTMain.numThreads);
+			} else {
+				// The source's file already holds this exact cache. Reference it rather than write it out again
+				mCache = mapCacheFile(sourcePath, fingerprint);
+				linkSourceCacheFile(sourcePath, Constants.ROUTE_CACHE_BIN);
+				return;
+			}
+		} else if(CACHE_MODE == CACHE_LAZY) {
+			Log.iln(TAG, "Using a lazy route cache. Routes will be calculated as they are needed");
+			mCache = new LazyRouteCache(mTrips, LAZY_CACHE_BUDGET_MB * 1024 * 1024);
+			return;
+		} else if(CACHE_MODE == CACHE_SPARSE) {
+			mCache = doSparseRoutefinding();
+			return;
+		} else if(CACHE_MODE == CACHE_APPROXIMATE) {
+			Log.iln(TAG, "Using approximate zone travel times. No routes will be calculated");
+			mCache = new ZoneRouteCache(mTrips, mZones);
+			return;
+		} else if(CACHE_MODE == CACHE_NODE_DEDUP) {
+			mCache = doNodeRoutefinding();
+		} else if(CACHE_MODE == CACHE_PROGRESSIVE) {
+			Log.iln(TAG, "Routing the cache in call in order while the simulation runs");
+			mCache = new ProgressiveRouteCache(mTrips, RouteCache.BACKEND_OFF_HEAP, TravelTimeCodec.DEFAULT,
+					TacomaDRTMain.numThreads);
+			return;
+		} else if(CACHE_MODE == CACHE_NIBBLE) {
+			mCache = doNibbleRoutefinding();
+		} else if(CACHE_MODE == CACHE_TILED) {
+			String simDir = TacomaDRTMain.getSimulationDirectory();
+			doCheckpointedRoutefinding(simDir, fingerprint);
+			convertToTiledCacheFile(simDir + Constants.ROUTE_CACHE_BIN, simDir + Constants.ROUTE_CACHE_TILED, fingerprint);
+			mCache = openTiledCacheFile(simDir + Constants.ROUTE_CACHE_TILED, fingerprint);
+			return;
 		} else {
-			doAllRoutefinding(routeBuilder);
+			// The cache is built straight into this simulation's cache file
+			doCheckpointedRoutefinding(TacomaDRTMain.getSimulationDirectory(), fingerprint);
+			mCache = mapCacheFile(TacomaDRTMain.getSimulationDirectory() + Constants.ROUTE_CACHE_BIN, fingerprint);
+			return;
+		}
+		writeCacheToFile(fingerprint);
+	}
+	
+	/**
+	 * Builds the full route cache into the cache file of the specified simulation. Progress
+	 * is checkpointed as the build goes, and a build that was interrupted is resumed
+	 * @param simDir The simulation directory
+	 * @param fingerprint Fingerprint of the current street graph
+	 */
+	private void doCheckpointedRoutefinding(String simDir, long fingerprint) {
+		String partialPath = simDir + Constants.ROUTE_CACHE_PARTIAL;
+		String path = simDir + Constants.ROUTE_CACHE_BIN;
+		try {
+			RouteCacheCheckpoint checkpoint = new RouteCacheCheckpoint(partialPath, simDir + Constants.ROUTE_CACHE_MANIFEST,
+					mTrips.size(), RouteCacheCheckpoint.DEFAULT_TRIPS_PER_BLOCK, TravelTimeCodec.DEFAULT, fingerprint);
+			doAllRoutefinding(checkpoint);
+			checkpoint.finish(path);
+			
+			// This cache is valuable! Set read only
+			new File(path).setReadOnly();
+			Log.iln(TAG, "  File succesfully writen at:" + path);
+		} catch (IOException ex) {
+			Log.e(TAG, "Unable to build cache file at: " + partialPath + "\n  " + ex.getMessage());
+			ex.printStackTrace();
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Copies the partial cache file and manifest of an interrupted build into another simulation's
+	 * directory, where doCheckpointedRoutefinding() can resume it. The files are copied rather
+	 * than linked, since the build writes to them. If they can't be copied, the build starts over
+	 * @param sourceDir Directory of the interrupted build
+	 * @param simDir Directory to resume the build in
+	 */
+	private void copySourcePartialCache(String sourceDir, String simDir) {
+		try {
+			Files.copy(Paths.get(sourceDir + Constants.ROUTE_CACHE_PARTIAL), Paths.get(simDir + Constants.ROUTE_CACHE_PARTIAL),
+					StandardCopyOption.REPLACE_EXISTING);
+			Files.copy(Paths.get(sourceDir + Constants.ROUTE_CACHE_MANIFEST), Paths.get(simDir + Constants.ROUTE_CACHE_MANIFEST),
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException ex) {
+			// Not fatal, the build just starts over
+			Log.e(TAG, "Unable to copy source simulation's partial cache. " + ex.getMessage());
+			ex.printStackTrace();
+			new File(simDir + Constants.ROUTE_CACHE_PARTIAL).delete();
+			new File(simDir + Constants.ROUTE_CACHE_MANIFEST).delete();
+		}
+	}
+	
+	/**
+	 * Opens the travel time store, and has every router check it before routing
+	 * @param fingerprint Fingerprint of the current street graph
+	 */
+	private void openTravelTimeStore(long fingerprint) {
+		String path = Constants.FILE_BASE_DIR + Constants.TRAVEL_TIME_STORE;
+		try {
+			mTravelTimeStore = new TravelTimeStore(path, fingerprint);
+			Routefinder.setTravelTimeStore(mTravelTimeStore);
+		} catch (IOException ex) {
+			// Not fatal, everything will just be routed
+			Log.e(TAG, "Unable to open travel time store at: " + path + "\n  " + ex.getMessage());
+			ex.printStackTrace();
 		}
-		mCache = routeBuilder.build();
-		writeCacheToFile();
+	}
+	
+	/**
+	 * Writes any new travel times to the travel time store
+	 */
+	private void flushTravelTimeStore() {
+		if(mTravelTimeStore == null)
+			return;
+		Log.iln(TAG, mTravelTimeStore.getHits() + " travel times came from the store, " 
+				+ mTravelTimeStore.getMisses() + " were routed");
+		try {
+			mTravelTimeStore.flush();
+		} catch (IOException ex) {
+			Log.e(TAG, "Unable to write travel time store. " + ex.getMessage());
+			ex.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Writes any new travel times to the travel time store, and stops routers from using it
+	 */
+	private void closeTravelTimeStore() {
+		flushTravelTimeStore();
+		Routefinder.setTravelTimeStore(null);
+		mTravelTimeStore = null;
 	}
 	
 	/**
 	 * Delegates routefinding to worker threads
 	 */
-	private void doAllRoutefinding(RouteCacheBuilder cacheBuilder) {
+	private void doAllRoutefinding(RouteCacheCheckpoint checkpoint) {
 		int numThreads = TacomaDRTMain.numThreads;
 		
 		long routeStartTime = System.currentTimeMillis();
 		Log.iln(TAG, "Building route cache with " + numThreads + " threads. This may take a while...");
-		CountDownLatch latch = new CountDownLatch(numThreads); // To inform of thread completion
-		AtomicInteger progress = new AtomicInteger(); // For tracking caching progress
-		int totalRoutes = (int) Math.pow(mTrips.size()*2, 2);
-		
-		// Number of trips each thread will be calculating routes from
-		int threadTaskSize = mTrips.size() / numThreads;
+		AtomicLong progress = new AtomicLong(); // For tracking caching progress
+		long tripsLeft = mTrips.size() - checkpoint.getCompletedTripCount();
+		long totalRoutes = tripsLeft * 2 * mTrips.size() * 2;
 		
-		for(int i = 0; i < numThreads; i++) {
-			int startIndex = threadTaskSize * i;
-			int endIndex = (i+1 == numThreads) ? mTrips.size() : startIndex + threadTaskSize;
-			RoutefinderTask routeTask = new RoutefinderTask(cacheBuilder, mTrips, startIndex, endIndex, latch, progress);
-			new Thread(routeTask).start();
+		RouteCacheScheduler scheduler = new RouteCacheScheduler(checkpoint, mTrips, 
+				RouteCacheScheduler.DEFAULT_CHUNK_TRIPS, progress);
+		runRoutefinding(scheduler, progress, totalRoutes);
+		long routeEndTime = System.currentTimeMillis();
+		TacomaDRTMain.printTime("All routes calculated and cached in ", routeEndTime, routeStartTime);
+	}
+	
+	/**
+	 * Runs a cache build on the shared executor, and waits for it to finish. A build that
+	 * fails leaves the cache incomplete, and ends the simulation
+	 * @param scheduler The build
+	 * @param progress Number of routes calculated so far
+	 * @param totalRoutes Number of routes to calculate
+	 */
+	private void runRoutefinding(RouteCacheScheduler scheduler, AtomicLong progress, long totalRoutes) {
+		CountDownLatch latch = scheduler.start(TacomaDRTMain.getExecutor(), TacomaDRTMain.numThreads);
+		if(!awaitRoutefinding(latch, progress, totalRoutes))
+			scheduler.cancel();
+		if(scheduler.isCancelled()) {
+			Log.e(TAG, "Route cache build stopped before it was complete" 
+					+ (scheduler.getError() != null ? ". " + scheduler.getError().getMessage() : ""));
+			System.exit(1);
 		}
+	}
+	
+	/**
+	 * Builds a sparse route cache, routing only pairs of trip endpoints which could be
+	 * adjacent in a feasible schedule
+	 * @return The routed cache
+	 */
+	private SparseRouteCache doSparseRoutefinding() {
+		int numThreads = TacomaDRTMain.numThreads;
 		
+		long routeStartTime = System.currentTimeMillis();
+		SparseRouteCache cache = new SparseRouteCache(mTrips, SPARSE_CACHE_HORIZON_MINS);
+		long totalRoutes = cache.getStoredCount();
+		long denseRoutes = (long) cache.getSize() * cache.getSize();
+		Log.iln(TAG, "Building sparse route cache with " + numThreads + " threads. Routing " + totalRoutes 
+				+ " of " + denseRoutes + " routes (" + (float) totalRoutes / denseRoutes * 100 + "%)");
+		AtomicLong progress = new AtomicLong(); // For tracking caching progress
+		
+		// Chunks of rows, two per trip
+		RouteCacheScheduler scheduler = new RouteCacheScheduler(new SparseRoutefinderTask(cache, mTrips), 
+				cache.getSize(), RouteCacheScheduler.DEFAULT_CHUNK_TRIPS * 2, progress);
+		runRoutefinding(scheduler, progress, totalRoutes);
+		long routeEndTime = System.currentTimeMillis();
+		TacomaDRTMain.printTime("All routes calculated and cached in ", routeEndTime, routeStartTime);
+		return cache;
+	}
+	
+	/**
+	 * Builds a route cache in memory at 4 bits per cell
+	 * @return The routed cache
+	 */
+	private RouteCache doNibbleRoutefinding() {
+		int numThreads = TacomaDRTMain.numThreads;
+		
+		long routeStartTime = System.currentTimeMillis();
+		RouteCacheBuilder builder = new RouteCacheBuilder(mTrips, RouteCache.BACKEND_NIBBLE, NIBBLE_CACHE_CODEC);
+		long totalRoutes = (long) mTrips.size() * 2 * mTrips.size() * 2;
+		Log.iln(TAG, "Building nibble route cache with " + numThreads + " threads. This may take a while...");
+		AtomicLong progress = new AtomicLong(); // For tracking caching progress
+		
+		RouteCacheScheduler scheduler = new RouteCacheScheduler(builder, mTrips, 
+				RouteCacheScheduler.DEFAULT_CHUNK_TRIPS, progress);
+		runRoutefinding(scheduler, progress, totalRoutes);
+		long routeEndTime = System.currentTimeMillis();
+		TacomaDRTMain.printTime("All routes calculated and cached in ", routeEndTime, routeStartTime);
+		return builder.build();
+	}
+	
+	/**
+	 * Builds a route cache over the unique graph nodes the trip endpoints snap to
+	 * @return The routed cache
+	 */
+	private NodeRouteCache doNodeRoutefinding() {
+		int numThreads = TacomaDRTMain.numThreads;
+		
+		long routeStartTime = System.currentTimeMillis();
+		NodeRouteCache cache = new NodeRouteCache(mTrips, Routefinder.getInstance(), 
+				RouteCache.BACKEND_OFF_HEAP, TravelTimeCodec.DEFAULT);
+		int numNodes = cache.getNodeCount();
+		long totalRoutes = (long) numNodes * (numNodes - 1);
+		Log.iln(TAG, "Building route cache with " + numThreads + " threads. " + cache.getSize() 
+				+ " trip endpoints snap to " + numNodes + " graph nodes");
+		AtomicLong progress = new AtomicLong(); // For tracking caching progress
+		
+		// Chunks of node rows, about as many as a trip's two rows
+		RouteCacheScheduler scheduler = new RouteCacheScheduler(new NodeRoutefinderTask(cache), 
+				numNodes, RouteCacheScheduler.DEFAULT_CHUNK_TRIPS * 2, progress);
+		runRoutefinding(scheduler, progress, totalRoutes);
+		long routeEndTime = System.currentTimeMillis();
+		TacomaDRTMain.printTime("All routes calculated and cached in ", routeEndTime, routeStartTime);
+		return cache;
+	}
+	
+	/**
+	 * Waits for routing workers to finish, logging their progress
+	 * @param latch Counted down by each worker when it finishes
+	 * @param progress Number of routes calculated so far
+	 * @param totalRoutes Number of routes to calculate
+	 * @return False if interrupted before the workers finished
+	 */
+	private boolean awaitRoutefinding(CountDownLatch latch, AtomicLong progress, long totalRoutes) {
 		// Alternate waiting and updating progress. You should bring a book.
 		Log.i(TAG, "Routing at 0%", false, true);
 		int lastPercent = -1;
@@ -871,63 +1411,296 @@ public class DRTSimulation {
 		} catch (InterruptedException e) {
 			Log.e(TAG, e.getMessage());
 			e.printStackTrace();
+			return false;
 		}
-		long routeEndTime = System.currentTimeMillis();
-		TacomaDRTMain.printTime("All routes calculated and cached in ", routeEndTime, routeStartTime);
+		return true;
+	}
+	
+	/**
+	 * Maps a binary cache file into memory
+	 * @param path The cache file
+	 * @param fingerprint Fingerprint of the current street graph
+	 * @return The mapped cache
+	 */
+	private RouteCache mapCacheFile(String path, long fingerprint) {
+		return mapCacheFile(path, mTrips.size(), fingerprint);
 	}
 	
 	/**
-	 * Moves a source cache into memory
+	 * Maps a binary cache file into memory
+	 * @param path The cache file
+	 * @param numTrips Number of trips in the cache file
+	 * @param fingerprint Fingerprint of the current street graph
+	 * @return The mapped cache
 	 */
-	private void buildCacheFromFile(RouteCacheBuilder routeBuilder) {
-		File file = new File(TacomaDRTMain.getSourceCacheDir());
-		Log.iln(TAG, "Loading cache from file at " + file.getPath());
+	private RouteCache mapCacheFile(String path, int numTrips, long fingerprint) {
+		Log.iln(TAG, "Loading cache from file at " + path);
+		RouteCache cache = null;
+		try {
+			cache = RouteCacheFile.map(path, numTrips, fingerprint);
+		} catch(IOException ex) {
+			Log.e(TAG, "Unable to load cache file at: " + path + "\n  " + ex.getMessage());
+			ex.printStackTrace();
+			System.exit(1);
+		}
+		return cache;
+	}
+	
+	/**
+	 * Loads the routes traced by the source simulation, plus a margin, from whichever
+	 * cache file the source simulation has. Without one, traced routes are routed as they are read
+	 * @param sourceDir The source simulation's directory
+	 * @param fingerprint Fingerprint of the current street graph
+	 * @return The traced cache
+	 */
+	private RouteCache loadTracedCache(String sourceDir, long fingerprint) {
+		String tracePath = sourceDir + Constants.CACHE_TRACE;
+		Log.iln(TAG, "Loading cache trace from file at " + tracePath);
+		RouteCacheTrace trace = null;
+		try {
+			trace = RouteCacheTrace.read(tracePath, mTrips.size(), fingerprint);
+		} catch(IOException ex) {
+			Log.e(TAG, "Unable to load cache trace at: " + tracePath + "\n  " + ex.getMessage());
+			ex.printStackTrace();
+			System.exit(1);
+		}
+		long traced = trace.getPairCount();
+		trace.addMargin(mTrips, CACHE_TRACE_MARGIN_MINS);
+		Log.iln(TAG, "  Trace holds " + traced + " trip pairs, " + trace.getPairCount() + " with margin, of "
+				+ (long) mTrips.size() * mTrips.size());
+
+		RouteCache source = null;
+		if(new File(sourceDir + Constants.ROUTE_CACHE_BIN).exists())
+			source = mapCacheFile(sourceDir + Constants.ROUTE_CACHE_BIN, fingerprint);
+		else if(new File(sourceDir + Constants.ROUTE_CACHE_TILED).exists())
+			source = openTiledCacheFile(sourceDir + Constants.ROUTE_CACHE_TILED, fingerprint);
+		else if(new File(sourceDir + Constants.ROUTE_CACHE_COMPRESSED).exists())
+			source = openCompressedCacheFile(sourceDir + Constants.ROUTE_CACHE_COMPRESSED, fingerprint);
+		else
+			Log.iln(TAG, "  Source simulation has no cache file. Traced routes will be routed as they are read");
+
+		RouteCache cache = new TracedRouteCache(mTrips, trace, source, LAZY_CACHE_BUDGET_MB * 1024 * 1024);
+		if(source instanceof TiledRouteCache)
+			((TiledRouteCache) source).close();
+		return cache;
+	}
+	
+	/**
+	 * Copies the routes between this simulation's trips out of the cache of the simulation
+	 * they were sampled from
+	 * @param masterDir Directory of the simulation the trips were sampled from
+	 * @param fingerprint Fingerprint of the current street graph
+	 * @return A compact cache of this simulation's trips
+	 */
+	private RouteCache extractSampledCache(String masterDir, long fingerprint) {
+		long startTime = System.currentTimeMillis();
+		String path = null;
+		if(new File(masterDir + Constants.ROUTE_CACHE_BIN).exists())
+			path = masterDir + Constants.ROUTE_CACHE_BIN;
+		else if(new File(masterDir + Constants.ROUTE_CACHE_TILED).exists())
+			path = masterDir + Constants.ROUTE_CACHE_TILED;
+		else if(new File(masterDir + Constants.ROUTE_CACHE_COMPRESSED).exists())
+			path = masterDir + Constants.ROUTE_CACHE_COMPRESSED;
+		else {
+			Log.e(TAG, "No cache file to extract sampled trips from in: " + masterDir);
+			System.exit(1);
+		}
 		
-		Scanner scanner;
+		RouteCache master = null;
 		try {
-			scanner = new Scanner(file);
-			int size = mTrips.size()*2;
-			for(int i = 0; i < size; i++) {
-				String[] tokens = scanner.nextLine().split(COMMA_DELIM);
-				for(int j = 0; j < size; j++) {
-					routeBuilder.putDirect(i, j, Byte.valueOf(tokens[j]));
-				}				
-			}
-			scanner.close();	
-		} catch(FileNotFoundException ex) {
-			Log.e(TAG, "Unable to find trip file at: " + file.getPath());
+			int masterTrips = RouteCacheFile.readTripCount(path);
+			Log.iln(TAG, "Extracting routes of " + mTrips.size() + " sampled trips from the " 
+					+ masterTrips + " trip cache at " + path);
+			if(path.endsWith(Constants.ROUTE_CACHE_BIN))
+				master = RouteCacheFile.map(path, masterTrips, fingerprint);
+			else if(path.endsWith(Constants.ROUTE_CACHE_TILED))
+				master = TiledRouteCacheFile.open(path, masterTrips, fingerprint, TILED_CACHE_BUDGET_MB * 1024 * 1024);
+			else
+				master = CompressedRouteCacheFile.open(path, masterTrips, fingerprint, 
+						CompressedRouteCacheFile.DEFAULT_BLOCK_CACHE_BYTES);
+		} catch(IOException ex) {
+			Log.e(TAG, "Unable to load cache file at: " + path + "\n  " + ex.getMessage());
+			ex.printStackTrace();
+			System.exit(1);
+		}
+		
+		RouteCache cache = null;
+		try {
+			cache = new RemappedRouteCache(master, mTrips).extract(RouteCache.BACKEND_OFF_HEAP);
+		} catch(IllegalArgumentException ex) {
+			Log.e(TAG, "Trips were not sampled from the simulation at: " + masterDir + "\n  " + ex.getMessage());
+			ex.printStackTrace();
+			System.exit(1);
+		}
+		if(master instanceof TiledRouteCache)
+			((TiledRouteCache) master).close();
+		TacomaDRTMain.printTime("Sampled route cache extracted in ", System.currentTimeMillis(), startTime);
+		return cache;
+	}
+	
+	/**
+	 * Merges a simulation's cache shards into its binary cache file
+	 * @param simDir Directory holding the shards
+	 * @param path The binary cache file to write
+	 * @param fingerprint Fingerprint of the current street graph
+	 */
+	private void mergeCacheShards(String simDir, String path, long fingerprint) {
+		try {
+			RouteCacheShardFile.merge(simDir, path, fingerprint);
+			new File(path).setReadOnly();
+		} catch(IOException ex) {
+			Log.e(TAG, "Unable to merge cache shards in: " + simDir + "\n  " + ex.getMessage());
+			ex.printStackTrace();
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * @param path A cache file
+	 * @return Number of trips in the cache file
+	 */
+	private int readCacheTripCount(String path) {
+		int numTrips = -1;
+		try {
+			numTrips = RouteCacheFile.readTripCount(path);
+		} catch(IOException ex) {
+			Log.e(TAG, "Unable to read cache file at: " + path + "\n  " + ex.getMessage());
+			ex.printStackTrace();
+			System.exit(1);
+		}
+		return numTrips;
+	}
+	
+	private RouteCache openTiledCacheFile(String path, long fingerprint) {
+		Log.iln(TAG, "Loading tiled cache from file at " + path);
+		RouteCache cache = null;
+		try {
+			cache = TiledRouteCacheFile.open(path, mTrips.size(), fingerprint, TILED_CACHE_BUDGET_MB * 1024 * 1024);
+		} catch(IOException ex) {
+			Log.e(TAG, "Unable to load cache file at: " + path + "\n  " + ex.getMessage());
+			ex.printStackTrace();
+			System.exit(1);
+		}
+		return cache;
+	}
+	
+	/**
+	 * Rewrites a binary cache file as a tiled cache file, and deletes the binary file
+	 * @param binPath The binary cache file
+	 * @param tiledPath The tiled cache file to write
+	 * @param fingerprint Fingerprint of the graph in use
+	 */
+	private void convertToTiledCacheFile(String binPath, String tiledPath, long fingerprint) {
+		Log.iln(TAG, "Writing tiled cache file to: " + tiledPath);
+		try {
+			TiledRouteCacheFile.write(RouteCacheFile.map(binPath, mTrips.size(), fingerprint), tiledPath,
+					fingerprint, TiledRouteCacheFile.DEFAULT_TILE_SIZE);
+			new File(tiledPath).setReadOnly();
+			new File(binPath).delete();
+		} catch(IOException ex) {
+			Log.e(TAG, "Unable to write tiled cache file at: " + tiledPath + "\n  " + ex.getMessage());
+			ex.printStackTrace();
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Opens a compressed cache file
+	 * @param path The compressed cache file
+	 * @param fingerprint Fingerprint of the current street graph
+	 * @return The cache
+	 */
+	private RouteCache openCompressedCacheFile(String path, long fingerprint) {
+		Log.iln(TAG, "Loading compressed cache from file at " + path);
+		RouteCache cache = null;
+		try {
+			cache = CompressedRouteCacheFile.open(path, mTrips.size(), fingerprint, 
+					CompressedRouteCacheFile.DEFAULT_BLOCK_CACHE_BYTES);
+		} catch(IOException ex) {
+			Log.e(TAG, "Unable to load cache file at: " + path + "\n  " + ex.getMessage());
 			ex.printStackTrace();
 			System.exit(1);
 		}
+		return cache;
 	}
 	
 	/**
-	 * Writes the cache to file. Re-runs of this simulation can read 
+	 * Replaces this simulation's cache file with a compressed copy. Re-runs read
+	 * the compressed copy directly
+	 */
+	private void archiveCacheFile() {
+		String path = TacomaDRTMain.getSimulationDirectory() + Constants.ROUTE_CACHE_BIN;
+		String archivePath = TacomaDRTMain.getSimulationDirectory() + Constants.ROUTE_CACHE_COMPRESSED;
+		File file = new File(path);
+		if(!file.exists() || mCache == null)
+			return;
+		Log.iln(TAG, "Compressing cache file to: " + archivePath);
+		try {
+			CompressedRouteCacheFile.write(mCache, archivePath, Routefinder.getGraphFingerprint());
+			new File(archivePath).setReadOnly();
+			Log.iln(TAG, "  Compressed " + file.length() + " bytes to " + new File(archivePath).length());
+			file.delete();
+		} catch (IOException ex) {
+			// The uncompressed file is still there
+			Log.e(TAG, "Unable to compress cache file. " + ex.getMessage());
+			ex.printStackTrace();
+			new File(archivePath).delete();
+		}
+	}
+	
+	/**
+	 * Converts the source simulation's csv cache into this simulation's binary cache file,
+	 * then maps it into memory
+	 * @param fingerprint Fingerprint of the current street graph
+	 * @return The mapped cache
+	 */
+	private RouteCache convertLegacyCacheFile(long fingerprint) {
+		String csvPath = TacomaDRTMain.getSourceCacheCsvDir();
+		String path = TacomaDRTMain.getSimulationDirectory() + Constants.ROUTE_CACHE_BIN;
+		try {
+			RouteCacheFile.convertCsv(csvPath, path, fingerprint, TacomaDRTMain.numThreads);
+			new File(path).setReadOnly();
+		} catch(IOException ex) {
+			Log.e(TAG, "Unable to convert cache file at: " + csvPath + "\n  " + ex.getMessage());
+			ex.printStackTrace();
+			System.exit(1);
+		}
+		return mapCacheFile(path, fingerprint);
+	}
+	
+	/**
+	 * Makes the source simulation's cache file this simulation's, by hard link where possible
+	 * and by a kernel copy otherwise. Either way, the file isn't decoded and encoded again
+	 * @param sourcePath The source simulation's cache file
+	 * @param fileName Name of the cache file in this simulation's directory, e.g. Constants.ROUTE_CACHE_BIN
+	 */
+	private void linkSourceCacheFile(String sourcePath, String fileName) {
+		String path = TacomaDRTMain.getSimulationDirectory() + fileName;
+		try {
+			boolean linked = RouteCacheFile.link(sourcePath, path);
+			Log.iln(TAG, (linked ? "Linked" : "Copied") + " source cache file to: " + path);
+			mCacheLinked = true;
+		} catch (IOException ex) {
+			Log.e(TAG, "Unable to link source cache file. " + ex.getMessage());
+			ex.printStackTrace();
+			// Fall back to writing this simulation's own copy
+			writeCacheToFile(mGraphFingerprint);
+		}
+	}
+	
+	/**
+	 * Writes the cache to file. Re-runs of this simulation can map 
 	 * the cache file to avoid recomputing travel times
+	 * @param fingerprint Fingerprint of the street graph the cache was routed on
 	 */
-	private void writeCacheToFile() {
+	private void writeCacheToFile(long fingerprint) {
 		
 		// Get filename
-		String path = TacomaDRTMain.getSimulationDirectory() + Constants.ROUTE_CACHE_CSV;
+		String path = TacomaDRTMain.getSimulationDirectory() + Constants.ROUTE_CACHE_BIN;
 		Log.iln(TAG, "Writing cache file to: " + path);
 		
-		// Build a table
 		try {
-			FileWriter writer = new FileWriter(path, true);
-			PrintWriter lineWriter = new PrintWriter(writer);
-			
-			int size = mTrips.size() * 2;
-			for(int i = 0; i < size; i++) {
-				StringBuilder str = new StringBuilder();
-				for(int j = 0; j < size; j++) {
-					str.append(mCache.getDirect(i, j) + COMMA_DELIM);
-				}
-				// Write distances to file
-				lineWriter.println(str.toString());	
-			}
-
-			lineWriter.close();
-			writer.close();
+			RouteCacheFile.write(mCache, path, fingerprint);
 			
 			// This cache is valuable! Set read only
 			new File(path).setReadOnly();
@@ -15,16 +15,28 @@ public class Constants {
 	public final static String PC_AGE_FILE = "/PCAgeEmployment/PCAgeTotals.csv"; //Pierce County age data by census tract, from census
 	public final static String PC_EMPLOYMENT_FILE = "/PCAgeEmployment/TacomaTractEmp2009.csv "; // Pierce County employment data, from PSRC
 	public final static String TACOMA_BOUNDARY_SHP = "/TacomaBoundary/TacomaBoundary.shp"; // Tacoma city limits .shp, MOSTLY clipped to shoreline
+	public final static String TACOMA_GRAPH_DIR = "/tac-gh"; // Pre-built GraphHopper street graph
+	public final static String ZONE_TIMES_BIN = "/zone_times.bin"; // Zone to zone travel times, rebuilt when the graph changes
+	public final static String TRAVEL_TIME_STORE = "/travel_times.store"; // Travel times by location, shared across simulations
 	
 	// Generated simulation files
 	public final static String SIM_BASE_DIRECTORY = "files/Simulations";
 	public final static String TRIPS_VEHICLES_TXT = "/trips_vehicles.txt";
 	public final static String TRIPS_READABLE_TXT = "/trips_readable.txt";
 	public final static String TRIPS_REJECTED_TXT = "/rejected_trips.txt";
-	public final static String ROUTE_CACHE_CSV = "/route_cache.csv";
+	public final static String ROUTE_CACHE_CSV = "/route_cache.csv"; // Legacy text cache, see RouteCacheFile.convertCsv()
+	public final static String ROUTE_CACHE_BIN = "/route_cache.bin";
+	public final static String ROUTE_CACHE_COMPRESSED = "/route_cache.tdz"; // Archived cache, see CompressedRouteCacheFile
+	public final static String ROUTE_CACHE_TILED = "/route_cache.tdt"; // Cache read a tile at a time, see TiledRouteCacheFile
+	public final static String ROUTE_CACHE_PARTIAL = "/route_cache.partial"; // Cache file of a build in progress
+	public final static String ROUTE_CACHE_MANIFEST = "/route_cache.manifest"; // Completed blocks of a build in progress
+	public final static String ROUTE_CACHE_TRIPS = "/route_cache.trips"; // Endpoints of the trips a cache was built for, see RouteCacheFile.writeTrips()
+	public final static String ROUTE_CACHE_SHARD = "/route_cache_shard_"; // Followed by the shard's trip range, see RouteCacheShardFile
 	public final static String LOG_TXT = "/log.txt";
 	public final static String SCHED_TXT = "/schedules.txt";
 	public final static String STATS_CSV = "/statistics.csv";
+	public final static String CACHE_TRACE = "/cache_trace.bin"; // Trip pairs whose routes were read, see RouteCacheTrace
+	public final static String CACHE_ACCESS_CSV = "/cache_access.csv"; // Cache reads by row and column, see InstrumentedRouteCache
 	public final static String BOARDINGS_CSV = "/boardings.csv";
 	public final static String REBUS_SETTINGS_CSV = "/rebus_settings.csv";
 	public final static String TRIP_SHP_DIR = "/trips_shp";
@@ -2,7 +2,7 @@ package edu.pugetsound.npastor.utils;
 
 import java.awt.geom.Point2D;
 
-import com.graphhopper.GHResponse;
+import edu.pugetsound.npastor.routing.RouteSummary;
 
 
 /**
@@ -21,11 +21,12 @@ public class Trip {
 	private int mRiderAge;
 	private boolean mIsOutbound;
 	private int mIdentifier; // Unique trip identifier
+	private int mSourceIdentifier; // Identifier in the trip file this trip was sampled from
 	private String mOriginTract;
 	private String mDestTract;
 	private Point2D mOriginPoint;
 	private Point2D mDestPoint;
-	private GHResponse mRoute;
+	private RouteSummary mRoute;
 	private int mPickupTime;
 	private int mCallTime; // Time request was called in
 	
@@ -34,6 +35,7 @@ public class Trip {
 		mRiderAge = -1;
 		mIsOutbound = true;
 		mIdentifier = id;
+		mSourceIdentifier = id;
 		mOriginTract = TRACT_NOT_SET;
 		mDestTract = TRACT_NOT_SET;
 		mOriginPoint = new Point2D.Double();
@@ -71,6 +73,15 @@ public class Trip {
 		mCallTime = minutes;
 	}
 	
+	/**
+	 * Sets the identifier this trip had in the trip file it was sampled from, when
+	 * it was renumbered on loading
+	 * @param id The original identifier
+	 */
+	public void setSourceIdentifier(int id) {
+		mSourceIdentifier = id;
+	}
+	
 	public void setOriginPoint(Point2D endpoint) {
 		mOriginPoint = endpoint;
 	}
@@ -79,11 +90,11 @@ public class Trip {
 		mDestPoint = endpoint;
 	}
 	
-	public void setRoute(GHResponse route) {
+	public void setRoute(RouteSummary route) {
 		mRoute = route;
 	}
 	
-	public GHResponse getRoute() {
+	public RouteSummary getRoute() {
 		return mRoute;
 	}
 	
@@ -127,6 +138,14 @@ public class Trip {
 		return mIdentifier;
 	}
 	
+	/**
+	 * @return The identifier this trip had in the trip file it was sampled from. The
+	 *         same as getIdentifier() unless the trip was renumbered
+	 */
+	public int getSourceIdentifier() {
+		return mSourceIdentifier;
+	}
+	
 	public int getCallInTime() {
 		return mCallTime;
 	}